@@ -0,0 +1,90 @@
+package applications;
+
+import datatypes.TTPSegment;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Heap allocated per segment by a bulk transfer between two TTPServices in this JVM,
+ * counted over every thread: application, ReceiverThreads and timers.
+ * The services' segment logging goes to a null stream, so the terminal doesn't dominate the run
+ */
+public class AllocationBenchmark {
+
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7000;
+
+        PrintStream out = BenchmarkHarness.silence();
+        BenchmarkHarness.Pair pair = BenchmarkHarness.connect(port, null);
+
+        // warm up, class loading and JIT aren't counted
+        transfer(pair, messages / 4);
+
+        long allocated = allocatedBytes();
+        long collections = collections();
+        long start = System.nanoTime();
+        allocated = transfer(pair, messages) - allocated;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        collections = collections() - collections;
+
+        long segments = (long) messages * ((MESSAGE_SIZE + TTPSegment.MAX_DATA_SIZE - 1) / TTPSegment.MAX_DATA_SIZE);
+        out.printf("AllocationBenchmark: %d MB in %d segments, %.2f s%n",
+                (long) messages * MESSAGE_SIZE >> 20, segments, seconds);
+        out.printf("AllocationBenchmark: %d MB allocated, %d bytes per segment, %.0f MB/s, %d collections%n",
+                allocated >> 20, allocated / segments, allocated / 1048576.0 / seconds, collections);
+        out.println("AllocationBenchmark: sender " + pair.server.segmentPoolReport());
+        out.println("AllocationBenchmark: receiver " + pair.client.segmentPoolReport());
+        System.exit(0);
+    }
+
+    /**
+     * Send the messages from the server, receive them on a second thread
+     *
+     * @return bytes allocated by all threads so far, sampled while the receiving thread is still alive
+     */
+    private static long transfer(final BenchmarkHarness.Pair pair, final int messages) throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch counted = new CountDownLatch(1);
+        BenchmarkHarness.Worker receiver = BenchmarkHarness.start(() -> {
+            for (int i = 0; i < messages; i++) {
+                pair.client.receive(pair.clientConn);
+            }
+            received.countDown();
+            counted.await();
+        });
+
+        byte[] message = new byte[MESSAGE_SIZE];
+        for (int i = 0; i < messages; i++) {
+            pair.server.send(pair.serverConn, message);
+        }
+        received.await();
+        long allocated = allocatedBytes();
+        counted.countDown();
+        String failure = receiver.join();
+        if (failure != null) throw new IllegalStateException("Receiver failed, " + failure);
+        return allocated;
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    private static long collections() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += gc.getCollectionCount();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,104 @@
+package applications;
+
+import services.TTPConnection;
+import services.TTPService;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Many concurrent connections driven only by the asynchronous API: an echo server and clients that
+ * connect, exchange messages and close, all chained on futures. No application thread waits on a connection,
+ * the only threads are the ReceiverThread and timer of each TTPService, where the blocking API
+ * would also need a thread per connection on each side
+ */
+public class AsyncBenchmark {
+
+    private static final String ADDR = BenchmarkHarness.ADDR;
+    // message size, messages larger than a segment have to wait for the window
+    private static int messageSize;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 6500;
+
+        TTPService server = BenchmarkHarness.service(port);
+        server.listen(clients);
+        acceptLoop(server);
+
+        // every client needs its own port, services can't share one
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> transfers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            short clientPort = (short) (port + 1 + i);
+            transfers.add(runClient(BenchmarkHarness.service(clientPort), clientPort, (short) port, rounds));
+        }
+        int threads = Thread.activeCount();
+        CompletableFuture.allOf(transfers.toArray(new CompletableFuture<?>[0])).join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("AsyncBenchmark: %d connections, %d round trips of %d bytes in %.2f s%n",
+                clients, clients * rounds, messageSize, seconds);
+        System.out.printf("AsyncBenchmark: %d live threads, %d TTPServices, no thread per connection%n",
+                threads, clients + 1);
+        System.exit(0);
+    }
+
+    /**
+     * Accept connections one after another, each one is echoed on its own chain
+     *
+     * @param server server service
+     */
+    private static void acceptLoop(final TTPService server) {
+        server.acceptAsync().thenAccept(conn -> {
+            echo(server, conn);
+            acceptLoop(server);
+        });
+    }
+
+    /**
+     * Send every message back, until the client closes
+     *
+     * @param server server service
+     * @param conn connection
+     */
+    private static void echo(final TTPService server, final TTPConnection conn) {
+        server.receiveAsync(conn, TTPConnection.DEFAULT_STREAM, Integer.MAX_VALUE)
+                .thenCompose(message -> server.sendAsync(conn, TTPConnection.DEFAULT_STREAM, ByteBuffer.wrap(message)))
+                .whenComplete((sent, e) -> {
+                    if (e == null) echo(server, conn);
+                });
+    }
+
+    /**
+     * Connect, send a message and wait for its echo the given number of times, then close
+     *
+     * @param client client service
+     * @param clientPort local port
+     * @param serverPort server port
+     * @param rounds messages to exchange
+     * @return completes when the connection is closed
+     */
+    private static CompletableFuture<Void> runClient(final TTPService client, short clientPort, short serverPort,
+                                                     final int rounds) {
+        return client.connectAsync(ADDR, clientPort, ADDR, serverPort, null)
+                .thenCompose(conn -> pingPong(client, conn, rounds)
+                        .thenCompose(done -> client.closeAsync(conn)));
+    }
+
+    private static CompletableFuture<Void> pingPong(final TTPService client, final TTPConnection conn,
+                                                    final int remaining) {
+        if (remaining == 0) return CompletableFuture.completedFuture(null);
+
+        return client.sendAsync(conn, TTPConnection.DEFAULT_STREAM, ByteBuffer.allocate(messageSize))
+                .thenCompose(sent -> client.receiveAsync(conn, TTPConnection.DEFAULT_STREAM, messageSize))
+                .thenCompose(reply -> {
+                    if (reply.length != messageSize) throw new IllegalStateException("Bad echo " + reply.length);
+                    return pingPong(client, conn, remaining - 1);
+                });
+    }
+}
@@ -0,0 +1,160 @@
+package applications;
+
+import services.TTPConnection;
+import services.TTPService;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.function.Consumer;
+
+/**
+ * Scaffold shared by the TTP benchmarks, every service runs in this JVM on localhost:
+ * connected server/client pairs, the services' logging silenced, echo threads
+ * and worker threads whose first failure is reported with the result
+ */
+final class BenchmarkHarness {
+
+    static final String ADDR = "127.0.0.1";
+    static final int WIN_SIZE = 50;
+    static final int TIMEOUT = 200;
+
+    private BenchmarkHarness() {}
+
+    /**
+     * Both ends of a connection, each on its own TTPService
+     */
+    static final class Pair {
+        final TTPService server;
+        final TTPService client;
+        final TTPConnection serverConn;
+        final TTPConnection clientConn;
+
+        private Pair(TTPService server, TTPService client, TTPConnection serverConn, TTPConnection clientConn) {
+            this.server = server;
+            this.client = client;
+            this.serverConn = serverConn;
+            this.clientConn = clientConn;
+        }
+    }
+
+    /**
+     * Something a worker thread runs
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Thread running a task, keeps the failure instead of printing it, the output may be silenced
+     */
+    static final class Worker {
+        private final Thread thread;
+        private volatile String failure;
+
+        private Worker(final Task task) {
+            thread = new Thread(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failure = e.toString();
+                }
+            });
+        }
+
+        /**
+         * @return failure of the task, null if it finished fine
+         * @throws InterruptedException
+         */
+        String join() throws InterruptedException {
+            thread.join();
+            return failure;
+        }
+
+        boolean isAlive() {
+            return thread.isAlive();
+        }
+    }
+
+    /**
+     * Send everything the services print to a null stream, so the terminal doesn't dominate the run
+     *
+     * @return original System.out, for the results
+     */
+    static PrintStream silence() {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        return out;
+    }
+
+    /**
+     * @param port local port
+     * @return service with the benchmarks' window and timeout
+     * @throws Exception
+     */
+    static TTPService service(int port) throws Exception {
+        return new TTPService(WIN_SIZE, TIMEOUT, port);
+    }
+
+    /**
+     * Server listening on port, and a client on the next port connected to it
+     *
+     * @param port server port
+     * @param setup configures the client before it connects, may be null
+     * @return connected pair
+     * @throws Exception
+     */
+    static Pair connect(int port, Consumer<TTPService> setup) throws Exception {
+        TTPService server = service(port);
+        server.listen(1);
+        return connect(server, port, port + 1, setup);
+    }
+
+    /**
+     * Connect a new client to a listening server
+     *
+     * @param server listening server
+     * @param serverPort server port
+     * @param clientPort client port
+     * @param setup configures the client before it connects, may be null
+     * @return connected pair
+     * @throws Exception
+     */
+    static Pair connect(TTPService server, int serverPort, int clientPort, Consumer<TTPService> setup)
+            throws Exception {
+        TTPService client = service(clientPort);
+        if (setup != null) setup.accept(client);
+        TTPConnection clientConn = client.connect(ADDR, (short) clientPort, ADDR, (short) serverPort);
+        return new Pair(server, client, server.accept(), clientConn);
+    }
+
+    /**
+     * @param task task
+     * @return started worker
+     */
+    static Worker start(Task task) {
+        Worker worker = new Worker(task);
+        worker.thread.start();
+        return worker;
+    }
+
+    /**
+     * Send every message back on a daemon thread, until the connection fails or closes
+     *
+     * @param service service of the connection
+     * @param conn connection
+     */
+    static void echo(final TTPService service, final TTPConnection conn) {
+        Thread echo = new Thread(() -> {
+            try {
+                while (true) {
+                    service.send(conn, service.receive(conn));
+                }
+            } catch (Exception e) {
+                // connection closed
+            }
+        });
+        echo.setDaemon(true);
+        echo.start();
+    }
+}
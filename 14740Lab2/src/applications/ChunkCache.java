@@ -0,0 +1,201 @@
+package applications;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of recently served file chunks, so popular files are sent from memory
+ * instead of being mapped and read again by every RequestHandler
+ *
+ * Chunks are stored off heap in direct buffers of one chunk each, allocated on demand up to the capacity
+ * and then recycled from the least recently used chunk. Entries are keyed by path, size, mtime and offset,
+ * a changed file simply stops being hit and ages out
+ *
+ * A chunk is pinned while a handler sends it, pinned chunks are never evicted
+ */
+public class ChunkCache {
+
+    private final int chunkSize;
+    private final int maxChunks;
+
+    // access ordered, eldest is least recently used
+    private final LinkedHashMap<Key, Slot> slots = new LinkedHashMap<>(16, 0.75f, true);
+    // buffers of evicted chunks, or reserved buffers given back
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    // direct buffers allocated so far
+    private int allocated;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity max number of bytes cached
+     * @param chunkSize size of a chunk
+     */
+    public ChunkCache(long capacity, int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.maxChunks = (int) Math.min(capacity / chunkSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Look up and pin a chunk
+     *
+     * @param path file path
+     * @param size file size
+     * @param mtime file modification time
+     * @param offset chunk offset in file
+     * @return pinned chunk, or null if not cached. Must be released after use
+     */
+    public synchronized Slot acquire(String path, long size, long mtime, long offset) {
+        Slot slot = slots.get(new Key(path, size, mtime, offset));
+        if (slot == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        slot.pins++;
+        return slot;
+    }
+
+    /**
+     * Copy a chunk read from the file into the cache and pin it
+     * The copy is done outside the lock, only reserving a buffer and publishing the chunk are serialized
+     *
+     * @param path file path
+     * @param size file size
+     * @param mtime file modification time
+     * @param offset chunk offset in file
+     * @param chunk whole chunk content, its position isn't changed
+     * @return pinned chunk, or null if every cached chunk is pinned. Must be released after use
+     */
+    public Slot put(String path, long size, long mtime, long offset, ByteBuffer chunk) {
+        ByteBuffer buffer = reserve();
+        if (buffer == null) return null;
+
+        buffer.clear();
+        buffer.put(chunk.duplicate());
+        buffer.flip();
+
+        Key key = new Key(path, size, mtime, offset);
+        synchronized (this) {
+            // another handler cached it meanwhile
+            Slot slot = slots.get(key);
+            if (slot != null) {
+                free.push(buffer);
+            } else {
+                slot = new Slot(buffer);
+                slots.put(key, slot);
+            }
+            slot.pins++;
+            return slot;
+        }
+    }
+
+    /**
+     * Unpin a chunk returned by acquire or put
+     * @param slot chunk
+     */
+    public synchronized void release(Slot slot) {
+        slot.pins--;
+    }
+
+    /**
+     * Take a free buffer, allocate one while under capacity, otherwise evict the least recently used unpinned chunk
+     * @return buffer, or null if everything is pinned
+     */
+    private synchronized ByteBuffer reserve() {
+        if (!free.isEmpty()) return free.pop();
+        if (allocated < maxChunks) {
+            allocated++;
+            return ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        Iterator<Map.Entry<Key, Slot>> it = slots.entrySet().iterator();
+        while (it.hasNext()) {
+            Slot slot = it.next().getValue();
+            if (slot.pins == 0) {
+                it.remove();
+                evictions++;
+                return slot.buffer;
+            }
+        }
+        return null;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return hit, miss and eviction counts and memory in use
+     */
+    public synchronized String report() {
+        return String.format("%d hits, %d misses, %d evictions, %d chunks, %.1f/%.1f MB",
+                hits, misses, evictions, slots.size(),
+                (double) allocated * chunkSize / (1024 * 1024), (double) maxChunks * chunkSize / (1024 * 1024));
+    }
+
+    /**
+     * A cached chunk
+     */
+    public static final class Slot {
+        private final ByteBuffer buffer;
+        // number of handlers sending it, guarded by the cache
+        private int pins;
+
+        Slot(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return view of the chunk, with its own position and limit
+         */
+        public ByteBuffer content() {
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * One chunk of one version of a file
+     */
+    private static final class Key {
+        final String path;
+        final long size;
+        final long mtime;
+        final long offset;
+
+        Key(String path, long size, long mtime, long offset) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return offset == k.offset && mtime == k.mtime && size == k.size && path.equals(k.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = path.hashCode();
+            h = 31 * h + Long.hashCode(size);
+            h = 31 * h + Long.hashCode(mtime);
+            return 31 * h + Long.hashCode(offset);
+        }
+    }
+}
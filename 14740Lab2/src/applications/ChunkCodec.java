@@ -0,0 +1,109 @@
+package applications;
+
+import datatypes.FTPData;
+import services.DataUtil;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the FTPData chunks of one connection
+ *
+ * Keeps one Deflater/Inflater and output buffer for the whole connection, they are reset between chunks
+ * instead of allocated per chunk. A chunk that doesn't shrink is sent as it is.
+ * Not thread safe, every connection has its own codec
+ */
+public class ChunkCodec {
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    // deflater output, reused for every chunk
+    private byte[] buffer;
+
+    private long chunks;
+    private long rawChunks;
+    private long rawBytes;
+    private long encodedBytes;
+    private long nanos;
+
+    /**
+     * @param level Deflater level, DEFAULT_COMPRESSION or 0 to 9
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Compress a chunk
+     * The returned buffer is reused by the next call, it must be sent before encoding the next chunk
+     *
+     * @param chunk chunk content, its position isn't changed
+     * @return compressed content, or chunk itself if compression doesn't make it smaller
+     */
+    public ByteBuffer encode(ByteBuffer chunk) {
+        long start = System.nanoTime();
+        int size = chunk.remaining();
+
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+        if (buffer == null || buffer.length < size) buffer = new byte[size];
+
+        // give up as soon as the output reaches the chunk size
+        deflater.setInput(chunk.duplicate());
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < size - 1) {
+            n += deflater.deflate(buffer, n, size - 1 - n);
+        }
+        boolean isShrunk = deflater.finished();
+
+        count(size, isShrunk ? n : size, start);
+        return isShrunk ? ByteBuffer.wrap(buffer, 0, n) : chunk;
+    }
+
+    /**
+     * Decode a received FTPData chunk, compressed or not
+     *
+     * @param message header followed by the chunk
+     * @return FTPData
+     */
+    public FTPData decode(byte[] message) {
+        long start = System.nanoTime();
+        if (inflater == null) inflater = new Inflater();
+
+        FTPData data = DataUtil.byteToFTPData(message, inflater);
+        count(data.getSize(), message.length - DataUtil.FTP_DATA_HEADER_SIZE, start);
+        return data;
+    }
+
+    private void count(int raw, int encoded, long start) {
+        chunks++;
+        if (raw == encoded) rawChunks++;
+        rawBytes += raw;
+        encodedBytes += encoded;
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return compression ratio and CPU time of the chunks so far
+     */
+    public String report() {
+        return String.format("%d chunks (%d uncompressed), %d -> %d bytes, ratio %.2f, %.1f ms CPU",
+                chunks, rawChunks, rawBytes, encodedBytes,
+                encodedBytes == 0 ? 1.0 : (double) rawBytes / encodedBytes, nanos / 1e6);
+    }
+
+    /**
+     * Release the native zlib memory
+     */
+    public void end() {
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+}
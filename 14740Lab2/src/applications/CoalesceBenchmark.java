@@ -0,0 +1,63 @@
+package applications;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Many small messages sent back to back, one segment per message with no-delay
+ * vs Nagle style batches while data is in flight. The receiver checks every message arrives whole and in order
+ */
+public class CoalesceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 7200;
+
+        PrintStream out = BenchmarkHarness.silence();
+
+        out.println(run("no-delay", messages, size, port, false));
+        out.println(run("coalescing", messages, size, port + 2, true));
+        System.exit(0);
+    }
+
+    /**
+     * @param name mode name
+     * @param messages number of messages
+     * @param size message size, at least 4 for the message number
+     * @param port server port, client uses the next one
+     * @param isCoalescing batch small messages on the client
+     * @return result line
+     * @throws Exception
+     */
+    private static String run(String name, final int messages, int size, int port, boolean isCoalescing)
+            throws Exception {
+        final BenchmarkHarness.Pair pair = BenchmarkHarness.connect(port,
+                client -> client.setCoalescing(isCoalescing));
+
+        BenchmarkHarness.Worker receiver = BenchmarkHarness.start(() -> {
+            for (int i = 0; i < messages; i++) {
+                ByteBuffer message = ByteBuffer.wrap(pair.server.receive(pair.serverConn));
+                int n = message.getInt();
+                if (n != i || message.capacity() != size) {
+                    throw new IllegalStateException("message " + i + ": got #" + n + " of "
+                            + message.capacity() + " bytes");
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            ByteBuffer message = ByteBuffer.allocate(size);
+            message.putInt(i);
+            message.rewind();
+            pair.client.send(pair.clientConn, message);
+        }
+        String failure = receiver.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (failure != null) return "CoalesceBenchmark: " + name + " FAILED, " + failure;
+        return String.format("CoalesceBenchmark: %-10s %d messages of %d bytes in %.2f s, %.0f messages/s, %s",
+                name, messages, size, seconds, messages / seconds, pair.client.coalescingReport());
+    }
+}
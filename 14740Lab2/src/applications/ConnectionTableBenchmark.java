@@ -0,0 +1,119 @@
+package applications;
+
+import services.AddressKey;
+import services.ConnectionTable;
+import services.TTPConnection;
+
+import java.lang.management.ManagementFactory;
+import java.net.UnknownHostException;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compare the packet demultiplexing lookup of the old String keyed Hashtable
+ * with the packed key ConnectionTable, while another thread keeps adding and removing connections
+ */
+public class ConnectionTableBenchmark {
+
+    private static final int LOOKUPS = 5_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0 ? new int[]{Integer.parseInt(args[0])} : new int[]{10_000, 50_000, 100_000};
+
+        for (int n : sizes) {
+            String[] addrs = new String[n];
+            short[] ports = new short[n];
+            for (int i = 0; i < n; i++) {
+                addrs[i] = "10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+                ports[i] = (short) (1024 + i % 50000);
+            }
+
+            System.out.println("== " + n + " connections ==");
+            benchHashtable(addrs, ports);
+            benchConnectionTable(addrs, ports);
+        }
+    }
+
+    private static void benchHashtable(final String[] addrs, final short[] ports) throws InterruptedException {
+        final Hashtable<String, TTPConnection> table = new Hashtable<>();
+        for (int i = 0; i < addrs.length; i++) {
+            table.put(addrs[i] + ":" + ports[i], new TTPConnection(1, 1, null));
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread churn = new Thread(() -> {
+            int i = 0;
+            while (running.get()) {
+                String key = "192.168.0." + (i & 0xFF) + ":" + (i & 0x7FFF);
+                table.put(key, new TTPConnection(1, 1, null));
+                table.remove(key);
+                i++;
+            }
+        });
+        churn.start();
+
+        int found = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            int j = i % addrs.length;
+            if (table.get(addrs[j] + ":" + ports[j]) != null) found++;
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+
+        running.set(false);
+        churn.join();
+        report("Hashtable<String>", found, elapsed, bytes);
+    }
+
+    private static void benchConnectionTable(final String[] addrs, final short[] ports)
+            throws InterruptedException, UnknownHostException {
+        final ConnectionTable table = new ConnectionTable();
+        AddressKey key = new AddressKey();
+        for (int i = 0; i < addrs.length; i++) {
+            table.put(key.set(addrs[i], ports[i]), new TTPConnection(1, 1, null));
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread churn = new Thread(() -> {
+            AddressKey churnKey = new AddressKey();
+            int i = 0;
+            try {
+                while (running.get()) {
+                    churnKey.set("192.168.0." + (i & 0xFF), (short) (i & 0x7FFF));
+                    table.put(churnKey, new TTPConnection(1, 1, null));
+                    table.remove(churnKey);
+                    i++;
+                }
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+            }
+        });
+        churn.start();
+
+        int found = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            int j = i % addrs.length;
+            if (table.get(key.set(addrs[j], ports[j])) != null) found++;
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+
+        running.set(false);
+        churn.join();
+        report("ConnectionTable", found, elapsed, bytes);
+    }
+
+    private static void report(String name, int found, long elapsedNanos, long bytes) {
+        System.out.printf("  %-18s found %d/%d, %.1f ns/lookup, %.1f bytes/lookup%n",
+                name, found, LOOKUPS, (double) elapsedNanos / LOOKUPS, (double) bytes / LOOKUPS);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
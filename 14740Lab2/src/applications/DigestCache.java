@@ -0,0 +1,109 @@
+package applications;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of file MD5 checksums and chunk checksums,
+ * so popular files aren't hashed again on every download
+ *
+ * Entries are keyed by path and only valid for the size and modification time they were computed for,
+ * a lookup that finds a different size or mtime drops the stale entry
+ */
+public class DigestCache {
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity max number of files to remember
+     */
+    public DigestCache(final int capacity) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Look up the checksum of a file version
+     *
+     * @param path file path
+     * @param size current file size
+     * @param mtime current modification time
+     * @return checksums, null if not cached or stale
+     */
+    public synchronized Entry get(String path, long size, long mtime) {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.mtime == mtime) {
+            hits++;
+            return entry;
+        }
+
+        // file changed since it was hashed
+        if (entry != null) entries.remove(path);
+        misses++;
+        return null;
+    }
+
+    /**
+     * Remember the checksum of a file version
+     *
+     * @param path file path
+     * @param size file size the checksum was computed on
+     * @param mtime modification time the checksum was computed on
+     * @param checksum checksum
+     * @param chunkChecksums MD5 of every chunk
+     * @return cached entry
+     */
+    public synchronized Entry put(String path, long size, long mtime, String checksum, byte[][] chunkChecksums) {
+        Entry entry = new Entry(size, mtime, checksum, chunkChecksums);
+        entries.put(path, entry);
+        return entry;
+    }
+
+    /**
+     * Drop the checksum of a file
+     * @param path file path
+     */
+    public synchronized void invalidate(String path) {
+        entries.remove(path);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Checksums of one version of a file
+     */
+    public static final class Entry {
+        final long size;
+        final long mtime;
+        final String checksum;
+        final byte[][] chunkChecksums;
+
+        Entry(long size, long mtime, String checksum, byte[][] chunkChecksums) {
+            this.size = size;
+            this.mtime = mtime;
+            this.checksum = checksum;
+            this.chunkChecksums = chunkChecksums;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public byte[][] getChunkChecksums() {
+            return chunkChecksums;
+        }
+    }
+}
@@ -2,24 +2,53 @@ package applications;
 
 import datatypes.FTPData;
 import datatypes.FTPMeta;
+import datatypes.FTPRequest;
 import services.DataUtil;
 import services.TTPConnection;
 import services.TTPService;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Simple FTPClient that requests file from FTPServer
  */
 public class FTPClient {
 
+    // Max number of received chunks waiting to be written to disk
+    private static final int SINK_QUEUE_SIZE = 8;
+    // Max number of batch requests sent ahead of the response being received
+    private static final int PIPELINE_DEPTH = 32;
+    // Fast open tokens of servers, kept between runs
+    private static final String FAST_OPEN_FILE = ".ttp_fastopen";
+    // length of the local copy downloaded so far, next to the copy, see FileSink.trackProgress
+    private static final String PROGRESS_SUFFIX = ".part";
+    private static final String SERVER_ADDR = "127.0.0.1";
+    private static final short SERVER_PORT = 4096;
+    // ask the server to deflate chunks at this level
+    private static boolean compress;
+    private static int compressionLevel;
+
     public static void main(String[] args) throws ClassNotFoundException, IOException{
 
-        if(args.length != 4) {
+        if(args.length < 4 || args.length > 6) {
             printUsage();
         }
         System.out.println("Starting FTPClient ...");
@@ -28,42 +57,638 @@ public class FTPClient {
         int winSize = Integer.parseInt(args[1]);
         int timeout = Integer.parseInt(args[2]);
         String path = args[3];
+        int streams = args.length >= 5 ? Integer.parseInt(args[4]) : 1;
+        compress = args.length == 6;
+        compressionLevel = compress ? Integer.parseInt(args[5]) : 0;
+        String copyPath = path + "_copy";
 
         TTPService ttpService = new TTPService(winSize, timeout, port);
-        TTPConnection conn = ttpService.connect("127.0.0.1", (short) port, "127.0.0.1", (short) 4096);
+        loadFastOpenTokens(ttpService);
+
+        // a single file download sends its first request with the handshake,
+        // on the SYN if the server gave a fast open token before
+        // the copy is preallocated, its progress file tells how much of it was downloaded
+        Path copy = Paths.get(copyPath);
+        Path progress = Paths.get(copyPath + PROGRESS_SUFFIX);
+        boolean isSingle = streams <= 1 && !path.startsWith("@");
+        byte[] firstRequest = isSingle ? request(path, partialSize(copy, progress), -1, 0) : null;
+        TTPConnection conn = ttpService.connect("127.0.0.1", (short) port, SERVER_ADDR, SERVER_PORT, firstRequest);
+        saveFastOpenToken(ttpService);
         System.out.println("Server: got connection "+conn.getTag());
 
+        // meta of the whole file, null until a full transfer is done
+        FTPMeta meta = null;
+        // MD5 of every chunk in the local copy
+        byte[][] received = null;
+        // a copy left by an interrupted download is resumed on the first request
+        boolean resume = isSingle;
+        // inflates the chunks of this connection
+        ChunkCodec codec = new ChunkCodec();
+
+        // @list_file downloads every path listed in the file over this connection
+        if (path.startsWith("@")) {
+            List<String> paths = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get(path.substring(1)))) {
+                if (!line.trim().isEmpty()) paths.add(line.trim());
+            }
+            downloadBatch(ttpService, conn, codec, paths);
+            codec.end();
+            ttpService.close(conn);
+            return;
+        }
+
         boolean isValid = false;
-        while (!isValid) {
-            System.out.println("start or start again");
-            ttpService.send(conn, DataUtil.objectToByte(path));
-            System.out.println("Client: requesting file: " + path);
-            FTPMeta meta = (FTPMeta) DataUtil.byteToObject(ttpService.receive(conn));
-            if (!meta.isFound()) {
-                throw new FileNotFoundException(path);
-            }
-
-            // loop to receive all the data
-            int size = meta.getTotalSize();
-            System.out.println("Client: total file size " + size);
-            int offset = 0;
-            while(offset < size) {
-                FTPData data = (FTPData) DataUtil.byteToObject(ttpService.receive(conn));
-                writeContent(path+"_copy", data.getData(), offset, data.getSize());
-                offset += data.getSize();
-            }
-
-            // validate MD5Checksum
-            isValid = isMD5Valid(path+"_copy", meta.getMd5Checksum());
+
+        // striped download, the stripes are checked against the chunk checksums
+        // and corrupted chunks go through the same repair as below
+        if (streams > 1) {
+            meta = requestMeta(ttpService, conn, path);
+            received = new byte[DataUtil.chunkCount(meta.getTotalSize(), meta.getChunkSize())][];
+            downloadStripes(ttpService, conn, codec, port, winSize, timeout, streams, path, copyPath, meta, received);
+            isValid = badRanges(path, meta, received).isEmpty();
             System.out.println("Client: is received file valid? " + isValid);
-            if (!isValid) {
-                Files.delete(Paths.get(path+"_copy"));
+        }
+
+        while (!isValid) {
+            // with chunk checksums only the corrupted chunks are requested again
+            List<FTPRequest> badRanges = meta == null || meta.getChunkChecksums() == null
+                    ? null : badRanges(path, meta, received);
+
+            if (badRanges == null || badRanges.isEmpty()) {
+                System.out.println("start or start again");
+                long partialSize = resume ? partialSize(copy, progress) : 0;
+                // the first request went out with the handshake
+                if (!resume) {
+                    ttpService.send(conn, request(path, partialSize, -1, 0));
+                }
+                resume = false;
+
+                System.out.println("Client: requesting file: " + path + " from " + partialSize);
+                meta = (FTPMeta) DataUtil.byteToObject(ttpService.receive(conn));
+                if (!meta.isFound()) {
+                    throw new FileNotFoundException(path);
+                }
+
+                // loop to receive all the data
+                long size = meta.getTotalSize();
+                System.out.println("Client: total file size " + size);
+                received = new byte[DataUtil.chunkCount(size, meta.getChunkSize())][];
+
+                // server starts at the chunk boundary at or before the partial size,
+                // chunks already on disk are checked against the chunk checksums instead of sent again
+                boolean isResumed = meta.getOffset() > 0;
+                if (isResumed) {
+                    System.out.println("Client: resuming from " + meta.getOffset());
+                    hashChunks(copy, meta, meta.getOffset(), received);
+                }
+
+                // running checksum of the chunks, valid as long as they arrive in file order from the start
+                MessageDigest digest = isResumed ? null : DataUtil.newMD5();
+                boolean inOrder;
+                try (FileSink sink = new FileSink(copy, size, SINK_QUEUE_SIZE, !isResumed)) {
+                    sink.trackProgress(progress, meta.getOffset());
+                    inOrder = receiveChunks(ttpService, conn, codec, sink, meta,
+                            meta.getOffset(), meta.getLength(), received, digest);
+                }
+
+                // checksums weren't known when the transfer started, they follow the last chunk
+                receiveTrailer(ttpService, conn, meta, meta);
+
+                // validate MD5Checksum, only read the copy back if the running checksum can't be used
+                if (isResumed) {
+                    isValid = badRanges(path, meta, received).isEmpty();
+                } else {
+                    isValid = inOrder ? isMD5Valid(digest, meta.getMd5Checksum())
+                            : isMD5Valid(copyPath, meta.getMd5Checksum());
+                }
+            } else {
+                for (FTPRequest range : badRanges) {
+                    System.out.println("Client: requesting range [" + range.getOffset() + ", "
+                            + (range.getOffset() + range.getLength()) + ") again");
+                    ttpService.send(conn, request(path, range.getOffset(), range.getLength()));
+                    FTPMeta rangeMeta = (FTPMeta) DataUtil.byteToObject(ttpService.receive(conn));
+
+                    // file changed on server, start over
+                    if (!rangeMeta.isFound() || rangeMeta.getTotalSize() != meta.getTotalSize()) {
+                        throw new IOException("File changed on server: " + path);
+                    }
+
+                    try (FileSink sink = new FileSink(Paths.get(copyPath), meta.getTotalSize(), SINK_QUEUE_SIZE, false)) {
+                        receiveChunks(ttpService, conn, codec, sink, meta,
+                                rangeMeta.getOffset(), rangeMeta.getLength(), received, null);
+                    }
+                    receiveTrailer(ttpService, conn, meta, rangeMeta);
+                }
+                isValid = badRanges(path, meta, received).isEmpty();
             }
+
+            System.out.println("Client: is received file valid? " + isValid);
         }
+        Files.deleteIfExists(progress);
 
+        if (compress) {
+            System.out.println("Client: compression " + codec.report());
+        }
+        codec.end();
         ttpService.close(conn);
     }
 
+    /**
+     * @param copy local copy path
+     * @param progress progress file of the copy
+     * @return length of the copy downloaded by an interrupted download, 0 if there's none
+     */
+    private static long partialSize(Path copy, Path progress) throws IOException {
+        return Files.exists(copy) ? Math.min(FileSink.readProgress(progress), Files.size(copy)) : 0;
+    }
+
+    /**
+     * Serialize a file request, asking for compressed chunks if compression is on
+     *
+     * @param path file path
+     * @param offset first byte requested
+     * @param length number of bytes requested, -1 for the rest of the file
+     * @return serialized request
+     */
+    private static byte[] request(String path, long offset, long length) {
+        return request(path, offset, length, -1);
+    }
+
+    /**
+     * Serialize a file request that also asks for the chunk checksums from checksumOffset on,
+     * when the server sends them after the data
+     *
+     * @param path file path
+     * @param offset first byte requested
+     * @param length number of bytes requested, -1 for the rest of the file
+     * @param checksumOffset first byte of the chunks whose checksums are wanted, -1 for the range only
+     * @return serialized request
+     */
+    private static byte[] request(String path, long offset, long length, long checksumOffset) {
+        FTPRequest request = new FTPRequest(path, offset, length);
+        request.setChecksumOffset(checksumOffset);
+        request.setCompress(compress);
+        request.setCompressionLevel(compressionLevel);
+        return DataUtil.objectToByte(request);
+    }
+
+    /**
+     * Load the fast open tokens saved by earlier runs
+     * @param ttpService service
+     */
+    private static void loadFastOpenTokens(TTPService ttpService) {
+        Path file = Paths.get(FAST_OPEN_FILE);
+        if (!Files.exists(file)) return;
+
+        Properties tokens = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            tokens.load(in);
+            for (String server : tokens.stringPropertyNames()) {
+                int i = server.lastIndexOf(':');
+                ttpService.setFastOpenToken(server.substring(0, i), Short.parseShort(server.substring(i + 1)),
+                        Integer.parseInt(tokens.getProperty(server)));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Client: ignoring saved fast open tokens, " + e.getMessage());
+        }
+    }
+
+    /**
+     * Save the fast open token the server gave in this handshake
+     * @param ttpService service
+     */
+    private static void saveFastOpenToken(TTPService ttpService) {
+        Integer token = ttpService.getFastOpenToken(SERVER_ADDR, SERVER_PORT);
+        if (token == null) return;
+
+        Path file = Paths.get(FAST_OPEN_FILE);
+        Properties tokens = new Properties();
+        try {
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    tokens.load(in);
+                }
+            }
+            tokens.setProperty(SERVER_ADDR + ":" + SERVER_PORT, Integer.toString(token));
+            try (OutputStream out = Files.newOutputStream(file)) {
+                tokens.store(out, "TTP fast open tokens");
+            }
+        } catch (IOException e) {
+            System.out.println("Client: failed to save fast open token, " + e.getMessage());
+        }
+    }
+
+    /**
+     * Request only the meta of a file, with its checksums
+     *
+     * @param ttpService service
+     * @param conn connection
+     * @param path file path
+     * @return meta
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private static FTPMeta requestMeta(TTPService ttpService, TTPConnection conn, String path)
+            throws IOException, ClassNotFoundException {
+        ttpService.send(conn, request(path, 0, 0));
+        FTPMeta meta = (FTPMeta) DataUtil.byteToObject(ttpService.receive(conn));
+        if (!meta.isFound()) {
+            throw new FileNotFoundException(path);
+        }
+
+        // checksums not cached on the server come after the data, here with no data, without checksums.
+        // The stripes bring those of their chunks
+        receiveTrailer(ttpService, conn, meta, meta);
+        return meta;
+    }
+
+    /**
+     * Download the file over several connections at once, each one from its own local port and TTPService,
+     * every connection fetches a contiguous stripe of chunks and they all write into one FileSink.
+     * Corrupted chunks are then requested again, spread over the connections the same way
+     *
+     * @param ttpService service of the first stream
+     * @param conn connection of the first stream
+     * @param codec codec of the first stream
+     * @param port local port of the first stream, the others use the following ports
+     * @param winSize window size
+     * @param timeout retransmission timeout
+     * @param streams number of connections
+     * @param path file path
+     * @param copyPath local copy path
+     * @param meta file meta with chunk checksums
+     * @param received filled with the MD5 of every chunk received
+     * @throws IOException
+     */
+    private static void downloadStripes(final TTPService ttpService, final TTPConnection conn,
+                                        final ChunkCodec codec, final int port,
+                                        final int winSize, final int timeout, int streams, final String path,
+                                        String copyPath, final FTPMeta meta, final byte[][] received)
+            throws IOException {
+        final int chunkSize = meta.getChunkSize();
+        int chunks = received.length;
+        if (chunks == 0) {
+            new FileSink(Paths.get(copyPath), 0, 1).close();
+            return;
+        }
+        streams = Math.min(streams, chunks);
+
+        // service, connection and codec of every stream, set by the stream's first task
+        final TTPService[] services = new TTPService[streams];
+        final TTPConnection[] conns = new TTPConnection[streams];
+        final ChunkCodec[] codecs = new ChunkCodec[streams];
+        services[0] = ttpService;
+        conns[0] = conn;
+        codecs[0] = codec;
+
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        long start = System.nanoTime();
+
+        try (final FileSink sink = new FileSink(Paths.get(copyPath), meta.getTotalSize(), SINK_QUEUE_SIZE * streams)) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                final int stream = i;
+                // stripes differ by at most one chunk
+                final long offset = (long) chunks * i / streams * chunkSize;
+                final long length = (long) chunks * (i + 1) / streams * chunkSize - offset;
+
+                tasks.add(() -> {
+                    // extra streams send their request with the handshake, using the first stream's fast open token
+                    if (stream == 0) {
+                        ttpService.send(conn, request(path, offset, length));
+                    } else {
+                        services[stream] = new TTPService(winSize, timeout, port + stream);
+                        codecs[stream] = new ChunkCodec();
+                        Integer token = ttpService.getFastOpenToken(SERVER_ADDR, SERVER_PORT);
+                        if (token != null) services[stream].setFastOpenToken(SERVER_ADDR, SERVER_PORT, token);
+                        conns[stream] = services[stream].connect("127.0.0.1", (short) (port + stream),
+                                SERVER_ADDR, SERVER_PORT, request(path, offset, length));
+                    }
+                    receiveRange(services[stream], conns[stream], codecs[stream], sink, path, meta, received, stream);
+                    return null;
+                });
+            }
+            runAll(pool, tasks);
+
+            // corrupted chunks, every stream repairs its share
+            List<List<FTPRequest>> repairs;
+            while (!(repairs = spreadBadChunks(path, meta, received, streams)).isEmpty()) {
+                tasks.clear();
+                for (int i = 0; i < streams; i++) {
+                    final int stream = i;
+                    final List<FTPRequest> ranges = repairs.get(i);
+                    tasks.add(() -> {
+                        for (FTPRequest range : ranges) {
+                            System.out.println("Client: stream " + stream + " requesting range [" + range.getOffset()
+                                    + ", " + (range.getOffset() + range.getLength()) + ") again");
+                            services[stream].send(conns[stream], request(path, range.getOffset(), range.getLength()));
+                            receiveRange(services[stream], conns[stream], codecs[stream], sink, path, meta,
+                                    received, stream);
+                        }
+                        return null;
+                    });
+                }
+                runAll(pool, tasks);
+            }
+
+            // the first stream's connection stays open for the caller
+            tasks.clear();
+            for (int i = 1; i < streams; i++) {
+                final int stream = i;
+                tasks.add(() -> {
+                    if (compress) {
+                        System.out.println("Client: stream " + stream + " compression " + codecs[stream].report());
+                    }
+                    services[stream].close(conns[stream]);
+                    return null;
+                });
+            }
+            runAll(pool, tasks);
+        } catch (Exception e) {
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException("Striped download failed", e);
+        } finally {
+            pool.shutdownNow();
+            // a stream that failed is left open, its service stops anyway and the server reaps the connection
+            for (int i = 1; i < streams; i++) {
+                if (codecs[i] != null) codecs[i].end();
+                if (services[i] != null) services[i].shutdown();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mb = meta.getTotalSize() / (1024.0 * 1024.0);
+        System.out.printf("Client: %d streams, %.1f MB in %.2f s, %.2f MB/s%n", streams, mb, seconds, mb / seconds);
+    }
+
+    /**
+     * Run a task per stream and wait for all of them
+     *
+     * @param pool stream threads
+     * @param tasks tasks
+     * @throws Exception first failure of a task
+     */
+    private static void runAll(ExecutorService pool, List<Callable<Void>> tasks) throws Exception {
+        for (Future<Void> result : pool.invokeAll(tasks)) {
+            result.get();
+        }
+    }
+
+    /**
+     * Receive the meta of a requested range and its chunks
+     *
+     * @param service service of the stream
+     * @param conn connection of the stream
+     * @param codec codec of the stream
+     * @param sink local copy
+     * @param path file path
+     * @param meta file meta with chunk checksums
+     * @param received filled with the MD5 of every chunk received
+     * @param stream stream number
+     * @throws IOException file changed on server
+     * @throws ClassNotFoundException
+     */
+    private static void receiveRange(TTPService service, TTPConnection conn, ChunkCodec codec, FileSink sink,
+                                     String path, FTPMeta meta, byte[][] received, int stream)
+            throws IOException, ClassNotFoundException {
+        FTPMeta rangeMeta = (FTPMeta) DataUtil.byteToObject(service.receive(conn));
+        if (!rangeMeta.isFound() || rangeMeta.getTotalSize() != meta.getTotalSize()) {
+            throw new IOException("File changed on server: " + path);
+        }
+        System.out.println("Client: stream " + stream + " receiving [" + rangeMeta.getOffset()
+                + ", " + (rangeMeta.getOffset() + rangeMeta.getLength()) + ")");
+        receiveChunks(service, conn, codec, sink, meta, rangeMeta.getOffset(), rangeMeta.getLength(), received, null);
+        receiveTrailer(service, conn, meta, rangeMeta);
+    }
+
+    /**
+     * Receive the checksums the server sends after the chunks when it didn't know them before,
+     * and keep them with those already known. Streams of a striped download share the meta
+     *
+     * @param ttpService service
+     * @param conn connection
+     * @param meta file meta the checksums are kept in
+     * @param rangeMeta meta of the range just received, tells if a trailer follows
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private static void receiveTrailer(TTPService ttpService, TTPConnection conn, FTPMeta meta, FTPMeta rangeMeta)
+            throws IOException, ClassNotFoundException {
+        if (!rangeMeta.isDigestTrailer()) return;
+        FTPMeta trailer = (FTPMeta) DataUtil.byteToObject(ttpService.receive(conn));
+
+        synchronized (meta) {
+            if (trailer.getMd5Checksum() != null) meta.setMd5Checksum(trailer.getMd5Checksum());
+            byte[][] checksums = trailer.getChunkChecksums();
+            if (checksums == null) return;
+            if (meta.getChunkChecksums() == null) {
+                meta.setChunkChecksums(new byte[checksums.length][]);
+            }
+            for (int i = 0; i < checksums.length; i++) {
+                if (checksums[i] != null) meta.getChunkChecksums()[i] = checksums[i];
+            }
+        }
+    }
+
+    /**
+     * Split the corrupted chunks evenly over the streams, adjacent chunks of a stream coalesced into ranges
+     *
+     * @param path file path
+     * @param meta meta with chunk checksums
+     * @param received MD5 of every chunk received
+     * @param streams number of streams
+     * @return requests of every stream, empty if the copy is valid
+     */
+    private static List<List<FTPRequest>> spreadBadChunks(String path, FTPMeta meta, byte[][] received, int streams) {
+        byte[][] expected = meta.getChunkChecksums();
+        List<Integer> bad = new ArrayList<>();
+        for (int i = 0; i < expected.length; i++) {
+            if (!Arrays.equals(expected[i], received[i])) bad.add(i);
+        }
+
+        List<List<FTPRequest>> requests = new ArrayList<>();
+        if (bad.isEmpty()) return requests;
+        int chunkSize = meta.getChunkSize();
+        for (int stream = 0; stream < streams; stream++) {
+            List<FTPRequest> ranges = new ArrayList<>();
+            int i = bad.size() * stream / streams;
+            int end = bad.size() * (stream + 1) / streams;
+            while (i < end) {
+                int first = bad.get(i);
+                int count = 1;
+                while (i + count < end && bad.get(i + count) == first + count) count++;
+                ranges.add(new FTPRequest(path, (long) first * chunkSize, (long) count * chunkSize));
+                i += count;
+            }
+            requests.add(ranges);
+        }
+        return requests;
+    }
+
+    /**
+     * Download many files over one connection, keeping up to PIPELINE_DEPTH requests ahead of the response
+     * being received. The server answers requests in order, so responses match the requests by position
+     * and each file goes to its own local copy. Files that fail verification are requested again in another round
+     *
+     * @param ttpService service
+     * @param conn connection
+     * @param codec inflates the chunks of the connection
+     * @param paths file paths
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private static void downloadBatch(TTPService ttpService, TTPConnection conn, ChunkCodec codec, List<String> paths)
+            throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        long bytes = 0;
+        int files = 0;
+
+        List<String> pending = paths;
+        while (!pending.isEmpty()) {
+            List<String> failed = new ArrayList<>();
+            int sent = 0;
+
+            for (int i = 0; i < pending.size(); i++) {
+                // top up the pipeline before waiting for the next response
+                while (sent < pending.size() && sent - i < PIPELINE_DEPTH) {
+                    ttpService.send(conn, request(pending.get(sent++), 0, -1));
+                }
+
+                String path = pending.get(i);
+                FTPMeta meta = (FTPMeta) DataUtil.byteToObject(ttpService.receive(conn));
+                if (!meta.isFound()) {
+                    System.out.println("Client: " + path + " not found");
+                    continue;
+                }
+
+                byte[][] received = new byte[DataUtil.chunkCount(meta.getTotalSize(), meta.getChunkSize())][];
+                MessageDigest digest = DataUtil.newMD5();
+                boolean inOrder;
+                try (FileSink sink = new FileSink(Paths.get(path + "_copy"), meta.getTotalSize(), SINK_QUEUE_SIZE)) {
+                    inOrder = receiveChunks(ttpService, conn, codec, sink, meta,
+                            meta.getOffset(), meta.getLength(), received, digest);
+                }
+                if (meta.isDigestTrailer()) {
+                    FTPMeta trailer = (FTPMeta) DataUtil.byteToObject(ttpService.receive(conn));
+                    meta.setMd5Checksum(trailer.getMd5Checksum());
+                }
+
+                boolean isValid = inOrder ? isMD5Valid(digest, meta.getMd5Checksum())
+                        : isMD5Valid(path + "_copy", meta.getMd5Checksum());
+                if (isValid) {
+                    files++;
+                    bytes += meta.getTotalSize();
+                } else {
+                    System.out.println("Client: " + path + " corrupted, requesting it again");
+                    failed.add(path);
+                }
+            }
+            pending = failed;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Client: %d files, %.1f MB in %.2f s, %.1f files/s%n",
+                files, bytes / (1024.0 * 1024.0), seconds, files / seconds);
+    }
+
+    /**
+     * Receive the chunks of a range and write them to the local copy
+     * The MD5 of every chunk is computed on arrival, corrupted chunks are reported as soon as they land
+     * if the chunk checksums are already known
+     *
+     * @param ttpService service
+     * @param conn connection
+     * @param codec inflates the chunks of the connection
+     * @param sink local copy
+     * @param meta file meta
+     * @param offset first byte of the range
+     * @param length range length
+     * @param received filled with the MD5 of every chunk received
+     * @param digest updated with the content while chunks arrive in order, may be null
+     * @return whether all the chunks arrived in file order
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private static boolean receiveChunks(TTPService ttpService, TTPConnection conn, ChunkCodec codec, FileSink sink,
+                                         FTPMeta meta, long offset, long length, byte[][] received, MessageDigest digest)
+            throws IOException, ClassNotFoundException {
+        byte[][] expected = meta.getChunkChecksums();
+        long end = offset + length;
+        boolean inOrder = true;
+        // a chunk is the largest message the server sends, anything longer isn't buffered
+        int maxMessage = DataUtil.FTP_DATA_HEADER_SIZE + meta.getChunkSize();
+
+        while (offset < end) {
+            FTPData data = codec.decode(ttpService.receive(conn, maxMessage));
+            inOrder = inOrder && data.getOffset() == offset;
+            if (digest != null && inOrder) digest.update(data.getData(), 0, data.getSize());
+
+            MessageDigest chunkDigest = DataUtil.newMD5();
+            chunkDigest.update(data.getData(), 0, data.getSize());
+            int index = (int) (data.getOffset() / meta.getChunkSize());
+            received[index] = chunkDigest.digest();
+            if (expected != null && expected[index] != null && !Arrays.equals(expected[index], received[index])) {
+                System.out.println("Client: chunk " + index + " corrupted");
+            }
+
+            sink.write(data);
+            offset += data.getSize();
+        }
+        return inOrder;
+    }
+
+    /**
+     * Compute the MD5 of the chunks already in the local copy
+     *
+     * @param copy local copy path
+     * @param meta file meta
+     * @param end end of the chunks to hash, on a chunk boundary
+     * @param received filled with the MD5 of every chunk hashed
+     * @throws IOException
+     */
+    private static void hashChunks(Path copy, FTPMeta meta, long end, byte[][] received) throws IOException {
+        int chunkSize = meta.getChunkSize();
+        try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+            for (int i = 0; (long) i * chunkSize < end; i++) {
+                buffer.clear();
+                long position = (long) i * chunkSize;
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0);
+                buffer.flip();
+
+                MessageDigest chunkDigest = DataUtil.newMD5();
+                chunkDigest.update(buffer);
+                received[i] = chunkDigest.digest();
+            }
+        }
+    }
+
+    /**
+     * Compare the received chunks with the chunk checksums, coalesce adjacent corrupted chunks into ranges
+     *
+     * @param path file path
+     * @param meta meta with chunk checksums
+     * @param received MD5 of every chunk received
+     * @return requests for the corrupted ranges, empty if the copy is valid
+     */
+    private static List<FTPRequest> badRanges(String path, FTPMeta meta, byte[][] received) {
+        byte[][] expected = meta.getChunkChecksums();
+        int chunkSize = meta.getChunkSize();
+        List<FTPRequest> ranges = new ArrayList<>();
+
+        int i = 0;
+        while (i < expected.length) {
+            if (Arrays.equals(expected[i], received[i])) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < expected.length && !Arrays.equals(expected[i], received[i])) i++;
+            ranges.add(new FTPRequest(path, (long) start * chunkSize, (long) (i - start) * chunkSize));
+        }
+        return ranges;
+    }
+
     /**
      * Validate the MD5Checksum of file at client side
      * @param path path of local copy
@@ -82,25 +707,17 @@ public class FTPClient {
     }
 
     /**
-     * Write the file chunk to local copy
-     *
-     * @param path local copy path
-     * @param content file chunk content
-     * @param off offset from file
-     * @param length chunk length
-     * @throws IOException
+     * Validate the MD5Checksum computed while receiving
+     * @param digest digest updated with the whole file content
+     * @param expected expected MD5 string
+     * @return isValid
      */
-    private static void writeContent(String path, byte[] content, int off, int length) throws IOException {
-
-        // need to use seek, so switch to RandomAccessFile
-        RandomAccessFile fileStream = new RandomAccessFile(path,"rwd");
-        fileStream.seek(off);
-        fileStream.write(content, 0, length);
-        fileStream.close();
+    public static boolean isMD5Valid(MessageDigest digest, String expected) {
+        return DataUtil.digestToString(digest.digest()).equals(expected);
     }
 
     private static void printUsage() {
-        System.out.println("Usage: java FTPClient <port> <win_size> <timeout> <file_path>");
+        System.out.println("Usage: java FTPClient <port> <win_size> <timeout> <file_path|@list_file> [streams [compression_level]]");
         System.exit(-1);
     }
 
@@ -1,18 +1,28 @@
 package applications;
 
-import datatypes.FTPData;
 import datatypes.FTPMeta;
+import datatypes.FTPRequest;
 import services.DataUtil;
 import services.TTPConnection;
 import services.TTPService;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 /**
  * Simple FTPServer that handler file request
@@ -21,14 +31,34 @@ public class FTPServer {
 
     // Chunk large file into small pieces, shouldn't dump large file in memory
     private static final int CHUNK_SIZE = 1024 * 512;
-    // Thread pool for handling client requests
-    private static ExecutorService threadPool = Executors.newFixedThreadPool(30);
+    // Files are mapped in regions of this size, chunks are sliced from the mapped region
+    private static final int MAP_REGION_SIZE = CHUNK_SIZE * 64;
+    // Default number of established connections waiting to be accepted
+    private static final int DEFAULT_BACKLOG = 50;
+    // Max number of files whose checksum is remembered
+    private static final int DIGEST_CACHE_SIZE = 1024;
+    // Checksums of recently served files
+    private static final DigestCache digestCache = new DigestCache(DIGEST_CACHE_SIZE);
+    // Default memory for recently served chunks, in MB
+    private static final int DEFAULT_CHUNK_CACHE_MB = 64;
+    // Default time a client may stay silent before its connection is dropped, in seconds
+    private static final int DEFAULT_IDLE_TIMEOUT_S = 60;
+    // Keep-alive probes sent to a silent client before it's dropped
+    private static final int KEEP_ALIVE_PROBES = 4;
+    // Recently served chunks, null if disabled
+    private static ChunkCache chunkCache;
+    // Max number of platform handler threads when there are no virtual threads, clients past it are turned away
+    private static final int MAX_HANDLERS = 256;
+    // Seconds an idle platform handler thread is kept for the next client
+    private static final int HANDLER_KEEP_ALIVE_S = 60;
+    // Executor for handling client requests, one thread per connection
+    private static ExecutorService threadPool = newHandlerExecutor();
     // TTPServices associated with server
     private static TTPService ttpService;
 
 
     public static void main(String[] args) throws SocketException{
-        if(args.length != 3) {
+        if(args.length < 3 || args.length > 6) {
             printUsage();
         }
 
@@ -37,19 +67,35 @@ public class FTPServer {
         int port = Integer.parseInt(args[0]);
         int winSize = Integer.parseInt(args[1]);
         int timeout = Integer.parseInt(args[2]);
+        int backlog = args.length >= 4 ? Integer.parseInt(args[3]) : DEFAULT_BACKLOG;
+        int cacheMB = args.length >= 5 ? Integer.parseInt(args[4]) : DEFAULT_CHUNK_CACHE_MB;
+        int idleTimeout = args.length == 6 ? Integer.parseInt(args[5]) : DEFAULT_IDLE_TIMEOUT_S;
+        if (cacheMB > 0) {
+            chunkCache = new ChunkCache(cacheMB * 1024L * 1024L, CHUNK_SIZE);
+        }
 
         ttpService = new TTPService(winSize, timeout, port);
+        ttpService.listen(backlog);
+        // free the connections of clients that crashed or vanished
+        ttpService.setIdleTimeout(idleTimeout * 1000L / KEEP_ALIVE_PROBES, idleTimeout * 1000L);
 
         while (true) {
             try{
 
                 // receive a connection
-                TTPConnection conn = ttpService.accept("127.0.0.1", (short) port);
+                TTPConnection conn = ttpService.accept();
                 System.out.println("Server: got connection from " + conn.getTag());
+                System.out.println("Server: connections " + ttpService.reaperReport());
 
                 // send the connection to handler thread
                 RequestHandler handler = new RequestHandler(conn);
-                threadPool.execute(handler);
+                try {
+                    threadPool.execute(handler);
+                } catch (RejectedExecutionException e) {
+                    // every platform handler is busy, close rather than let the client wait for one
+                    System.out.println("Server: no free request handler, closing " + conn.getTag());
+                    ttpService.closeAsync(conn);
+                }
 //                Thread.sleep(100000000);
             } catch (Exception e){
                 e.printStackTrace();
@@ -57,12 +103,35 @@ public class FTPServer {
         }
     }
 
+    /**
+     * Handlers spend almost all their time waiting on the network, so run each of them on its own virtual thread
+     * when the runtime has them (Java 21+). Otherwise each handler holds a platform thread while its client
+     * is connected: threads are started on demand up to MAX_HANDLERS, and a connection past that is closed
+     * instead of queued, so no client waits for a handler without limit
+     *
+     * @return executor
+     */
+    private static ExecutorService newHandlerExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("Server: request handlers run on virtual threads");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Server: virtual threads unavailable, at most " + MAX_HANDLERS
+                    + " request handlers run on platform threads");
+            return new ThreadPoolExecutor(0, MAX_HANDLERS, HANDLER_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                    new SynchronousQueue<>());
+        }
+    }
+
     /**
      * Handler that take care of different clients
      */
     static class RequestHandler implements Runnable {
 
         private TTPConnection conn;
+        // compresses chunks for clients that ask for it
+        private final ChunkCodec codec = new ChunkCodec();
 
         public RequestHandler(TTPConnection conn) {
             this.conn = conn;
@@ -76,7 +145,8 @@ public class FTPServer {
                 while (conn.isActive) {
 
                     System.out.println("Server: request handler started");
-                    String path = (String)DataUtil.byteToObject(ttpService.receive(conn));
+                    FTPRequest request = (FTPRequest)DataUtil.byteToObject(ttpService.receive(conn));
+                    String path = request.getPath();
                     System.out.println("Server: receive request for - " + path);
 
                     File file = new File(path);
@@ -87,43 +157,80 @@ public class FTPServer {
                     meta.setPath(path);
                     meta.setFound(isFound);
 
+                    // keep serving the connection, requests of a batch may follow
                     if (!isFound) {
                         ttpService.send(conn, DataUtil.objectToByte(meta));
-                        ttpService.close(conn);
-                        System.exit(0);
+                        continue;
                     }
 
-                    meta.setTotalSize((int)file.length());
-                    meta.setMd5Checksum(DataUtil.getMD5Checksum(path));
+                    String key = file.getAbsolutePath();
+                    long size = file.length();
+                    long mtime = file.lastModified();
+
+                    // requested range, clamped to the file, start moved back to a chunk boundary
+                    long offset = Math.min(Math.max(request.getOffset(), 0), size);
+                    long end = request.getLength() < 0 || request.getLength() > size - offset ? size
+                            : offset + request.getLength();
+                    offset -= offset % CHUNK_SIZE;
+                    long length = Math.max(end - offset, 0);
+                    boolean isWholeFile = offset == 0 && length == size;
+
+                    // known checksums go in the meta, otherwise they're computed while the chunks are streamed
+                    // and sent as trailer, nothing is read ahead of the first chunk
+                    DigestCache.Entry digests = digestCache.get(key, size, mtime);
+                    meta.setTotalSize(size);
+                    meta.setOffset(offset);
+                    meta.setLength(length);
+                    meta.setChunkSize(CHUNK_SIZE);
+                    if (digests != null) {
+                        meta.setMd5Checksum(digests.getChecksum());
+                        meta.setChunkChecksums(digests.getChunkChecksums());
+                    }
+                    meta.setDigestTrailer(digests == null);
+                    if (request.isCompress()) {
+                        int level = Math.min(Math.max(request.getCompressionLevel(), Deflater.DEFAULT_COMPRESSION),
+                                Deflater.BEST_COMPRESSION);
+                        meta.setCompressed(true);
+                        meta.setCompressionLevel(level);
+                        codec.setLevel(level);
+                    }
                     ttpService.send(conn, DataUtil.objectToByte(meta));
-                    System.out.println("Server: send file meta");
-
-                    int remain = (int)file.length();
-                    int retVal = 0;
-                    byte[] buffer = new byte[CHUNK_SIZE];
-                    BufferedInputStream input = new BufferedInputStream(new FileInputStream(file));
-
-                    // loop to send the chunks of requested file
-                    while (remain > 0 && retVal != -1) {
-
-                        int length = remain > CHUNK_SIZE? CHUNK_SIZE:remain;
-                        retVal = input.read(buffer, 0, length);
-
-                        if(retVal > 0) {
-                            byte[] data = new byte[retVal];
-                            System.arraycopy(buffer, 0, data, 0, retVal);
-
-                            FTPData ftpData = new FTPData();
-                            ftpData.setPath(path);
-                            ftpData.setData(data);
-                            ftpData.setSize(retVal);
-
-                            ttpService.send(conn, DataUtil.objectToByte(ftpData));
-                            remain -= retVal;
+                    System.out.println("Server: send file meta for [" + offset + ", " + (offset + length)
+                            + "), checksum cached? " + (digests != null));
+
+                    byte[][] chunkChecksums = meta.isDigestTrailer()
+                            ? new byte[DataUtil.chunkCount(size, CHUNK_SIZE)][] : null;
+                    if (!meta.isDigestTrailer()) {
+                        sendFile(file, key, size, mtime, offset, length, null, null, meta.isCompressed());
+                    } else if (isWholeFile) {
+                        MessageDigest digest = DataUtil.newMD5();
+                        sendFile(file, key, size, mtime, 0, size, digest, chunkChecksums, meta.isCompressed());
+                        String checksum = DataUtil.digestToString(digest.digest());
+                        sendTrailer(path, size, checksum, chunkChecksums);
+
+                        // only cache it if the file didn't change while it was streamed
+                        if (file.length() == size && file.lastModified() == mtime) {
+                            digestCache.put(key, size, mtime, checksum, chunkChecksums);
+                        }
+                    } else {
+                        // a range has checksums of its chunks only, and of those before it the client wants
+                        // to check its copy with, read after the data went out
+                        sendFile(file, key, size, mtime, offset, length, null, chunkChecksums, meta.isCompressed());
+                        long checksumOffset = request.getChecksumOffset();
+                        if (checksumOffset >= 0 && checksumOffset < offset) {
+                            hashChunks(file, (int) (checksumOffset / CHUNK_SIZE), (int) (offset / CHUNK_SIZE),
+                                    chunkChecksums);
                         }
+                        sendTrailer(path, size, null, chunkChecksums);
                     }
 
                     System.out.println("Server: Finished transmission");
+                    if (meta.isCompressed()) {
+                        System.out.println("Server: compression " + codec.report());
+                    }
+                    if (chunkCache != null) {
+                        System.out.println("Server: chunk cache " + chunkCache.report());
+                    }
                 }
 
 
@@ -133,14 +240,136 @@ public class FTPServer {
                 System.err.println("Client: closed connection.");
             } catch (Exception e) {
                 e.printStackTrace();
+            } finally {
+                codec.end();
             }
 
         }
+
+        /**
+         * Compute the checksums of a run of chunks
+         *
+         * @param file file
+         * @param first first chunk
+         * @param end chunk after the last one
+         * @param chunkChecksums filled with the MD5 of every chunk hashed
+         * @throws IOException
+         */
+        private void hashChunks(File file, int first, int end, byte[][] chunkChecksums) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                for (int i = first; i < end; i++) {
+                    buffer.clear();
+                    long position = (long) i * CHUNK_SIZE;
+                    while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0);
+                    buffer.flip();
+
+                    MessageDigest chunkDigest = DataUtil.newMD5();
+                    chunkDigest.update(buffer);
+                    chunkChecksums[i] = chunkDigest.digest();
+                }
+            }
+        }
+
+        /**
+         * Send the checksums that weren't known when the meta was sent, after the last chunk
+         *
+         * @param path file path
+         * @param size file size
+         * @param checksum MD5 of the file, null for a range
+         * @param chunkChecksums MD5 of the chunks, null for those not computed
+         * @throws IOException
+         */
+        private void sendTrailer(String path, long size, String checksum, byte[][] chunkChecksums)
+                throws IOException {
+            FTPMeta trailer = new FTPMeta();
+            trailer.setPath(path);
+            trailer.setFound(true);
+            trailer.setTotalSize(size);
+            trailer.setChunkSize(CHUNK_SIZE);
+            trailer.setMd5Checksum(checksum);
+            trailer.setChunkChecksums(chunkChecksums);
+            ttpService.send(conn, DataUtil.objectToByte(trailer));
+        }
+
+        /**
+         * Send a range of the file content as FTPData chunks
+         * Chunks are taken from the chunk cache when possible. Missing chunks are sliced from the memory mapped file,
+         * regions are only mapped when a chunk has to be read, and the chunk is copied into the cache.
+         * TTPService copies segments straight from the cache or page cache, no read buffer and no chunk serialization
+         * Chunks always end on a CHUNK_SIZE boundary of the file, so their checksums line up with the chunk checksums
+         *
+         * @param file requested file
+         * @param key cache key of the file
+         * @param size file size
+         * @param mtime file modification time
+         * @param offset first byte to send
+         * @param length number of bytes to send
+         * @param digest updated with the content as it's sent, may be null
+         * @param chunkChecksums filled with the MD5 of every chunk sent, may be null
+         * @param compress deflate the chunks that shrink
+         * @throws IOException
+         */
+        private void sendFile(File file, String key, long size, long mtime, long offset, long length,
+                              MessageDigest digest, byte[][] chunkChecksums, boolean compress) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+                long end = offset + length;
+                MappedByteBuffer region = null;
+                long regionStart = 0;
+                long regionEnd = 0;
+
+                long position = offset;
+                while (position < end) {
+                    // end of the file chunk this position is in, only whole chunks are cached
+                    long chunkEnd = Math.min(size, (position / CHUNK_SIZE + 1) * CHUNK_SIZE);
+                    int chunkSize = (int) (Math.min(end, chunkEnd) - position);
+                    boolean isCacheable = chunkCache != null && position % CHUNK_SIZE == 0;
+
+                    ChunkCache.Slot slot = isCacheable ? chunkCache.acquire(key, size, mtime, position) : null;
+                    ByteBuffer chunk;
+                    if (slot != null) {
+                        chunk = slot.content();
+                    } else {
+                        // regions end on a MAP_REGION_SIZE boundary, only one region is mapped at a time
+                        if (region == null || position >= regionEnd) {
+                            regionStart = position;
+                            regionEnd = Math.min(size, (position / MAP_REGION_SIZE + 1) * MAP_REGION_SIZE);
+                            region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+                        }
+                        chunk = region.duplicate();
+                        chunk.position((int) (position - regionStart)).limit((int) (chunkEnd - regionStart));
+                        if (isCacheable) {
+                            slot = chunkCache.put(key, size, mtime, position, chunk);
+                            if (slot != null) chunk = slot.content();
+                        }
+                    }
+
+                    try {
+                        chunk.limit(chunk.position() + chunkSize);
+                        if (digest != null) digest.update(chunk.duplicate());
+                        // only whole chunks, the last one of a range may end inside its chunk
+                        if (chunkChecksums != null && position % CHUNK_SIZE == 0 && position + chunkSize == chunkEnd) {
+                            MessageDigest chunkDigest = DataUtil.newMD5();
+                            chunkDigest.update(chunk.duplicate());
+                            chunkChecksums[(int) (position / CHUNK_SIZE)] = chunkDigest.digest();
+                        }
+
+                        ByteBuffer payload = compress ? codec.encode(chunk) : chunk;
+                        ByteBuffer header = DataUtil.ftpDataHeader(position, chunkSize, payload.remaining());
+                        ttpService.send(conn, header, payload);
+                    } finally {
+                        if (slot != null) chunkCache.release(slot);
+                    }
+                    position += chunkSize;
+                }
+            }
+        }
     }
 
 
     private static void printUsage() {
-        System.out.println("Usage: java FTPServer <port> <win_size> <timeout>");
+        System.out.println("Usage: java FTPServer <port> <win_size> <timeout> [backlog [chunk_cache_mb [idle_timeout_s]]]");
         System.exit(-1);
     }
 }
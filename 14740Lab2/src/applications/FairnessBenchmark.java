@@ -0,0 +1,73 @@
+package applications;
+
+import services.TTPService;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One server sending a bulk download to a client while it answers small requests of another client:
+ * latency of the requests competing with the bulk transfer for the server's socket, and the bulk throughput
+ */
+public class FairnessBenchmark {
+
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7600;
+
+        PrintStream out = BenchmarkHarness.silence();
+        TTPService server = BenchmarkHarness.service(port);
+        server.listen(2);
+        final BenchmarkHarness.Pair bulk = BenchmarkHarness.connect(server, port, port + 1, null);
+        BenchmarkHarness.Pair ping = BenchmarkHarness.connect(server, port, port + 2, null);
+        BenchmarkHarness.echo(server, ping.serverConn);
+
+        final long[] bulkNanos = new long[1];
+        BenchmarkHarness.Worker receiver = BenchmarkHarness.start(() -> {
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                bulk.client.receive(bulk.clientConn);
+            }
+            bulkNanos[0] = System.nanoTime() - start;
+        });
+        BenchmarkHarness.Worker sender = BenchmarkHarness.start(() -> {
+            byte[] message = new byte[MESSAGE_SIZE];
+            for (int i = 0; i < messages; i++) {
+                bulk.server.send(bulk.serverConn, message);
+            }
+        });
+
+        // ping until the bulk transfer is over
+        List<Long> latencies = new ArrayList<>();
+        byte[] request = new byte[64];
+        while (receiver.isAlive()) {
+            long start = System.nanoTime();
+            ping.client.send(ping.clientConn, request);
+            ping.client.receive(ping.clientConn);
+            latencies.add(System.nanoTime() - start);
+        }
+        String failure = receiver.join();
+        if (failure == null) failure = sender.join();
+        if (failure != null) {
+            out.println("FairnessBenchmark: FAILED, " + failure);
+            System.exit(1);
+        }
+
+        Collections.sort(latencies);
+        out.printf("FairnessBenchmark: bulk %d MB in %.2f s, %.2f MB/s%n", (long) messages * MESSAGE_SIZE >> 20,
+                bulkNanos[0] / 1e9, ((long) messages * MESSAGE_SIZE >> 20) / (bulkNanos[0] / 1e9));
+        out.printf("FairnessBenchmark: %d requests during the transfer, median %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                latencies.size(), percentile(latencies, 50), percentile(latencies, 99),
+                latencies.get(latencies.size() - 1) / 1e6);
+        out.println("FairnessBenchmark: server sender " + server.senderReport());
+        System.exit(0);
+    }
+
+    private static double percentile(List<Long> sorted, int p) {
+        return sorted.get(Math.min(sorted.size() - 1, sorted.size() * p / 100)) / 1e6;
+    }
+}
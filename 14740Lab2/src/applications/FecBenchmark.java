@@ -0,0 +1,61 @@
+package applications;
+
+import java.io.PrintStream;
+
+/**
+ * Bulk transfer without FEC and with an XOR parity segment per group of K data segments.
+ * The losses are the corrupted datagrams of the DatagramService, each one costs a timeout without FEC,
+ * with it the receiver rebuilds most of them from the parity of their group
+ */
+public class FecBenchmark {
+
+    private static final int MESSAGE_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7700;
+
+        PrintStream out = BenchmarkHarness.silence();
+
+        int[] groupSizes = {0, 16, 8, 4};
+        for (int i = 0; i < groupSizes.length; i++) {
+            out.println(run(groupSizes[i], messages, port + 2 * i));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @param groupSize data segments per parity segment, 0 for no FEC
+     * @param messages number of messages
+     * @param port receiving server port, the sending client uses the next one
+     * @return result line
+     * @throws Exception
+     */
+    private static String run(int groupSize, final int messages, int port) throws Exception {
+        final BenchmarkHarness.Pair pair = BenchmarkHarness.connect(port, client -> client.setFec(groupSize));
+
+        BenchmarkHarness.Worker reader = BenchmarkHarness.start(() -> {
+            for (int i = 0; i < messages; i++) {
+                byte[] message = pair.server.receive(pair.serverConn);
+                if (message.length != MESSAGE_SIZE || message[i % MESSAGE_SIZE] != (byte) i) {
+                    throw new IllegalStateException("message " + i + " of " + message.length + " bytes");
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        byte[] message = new byte[MESSAGE_SIZE];
+        for (int i = 0; i < messages; i++) {
+            message[i % MESSAGE_SIZE] = (byte) i;
+            pair.client.send(pair.clientConn, message);
+        }
+        String failure = reader.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        String name = groupSize == 0 ? "no FEC" : "K = " + groupSize;
+        if (failure != null) return "FecBenchmark: " + name + " FAILED, " + failure;
+        return String.format("FecBenchmark: %-7s %d MB in %.2f s, %.2f MB/s, sender %s, receiver %s",
+                name, (long) messages * MESSAGE_SIZE >> 20, seconds,
+                ((long) messages * MESSAGE_SIZE >> 20) / seconds, pair.client.fecReport(), pair.server.fecReport());
+    }
+}
@@ -0,0 +1,214 @@
+package applications;
+
+import datatypes.FTPData;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Write-behind sink for a downloaded file
+ *
+ * Keeps one FileChannel open for the whole transfer, preallocated to the file size.
+ * Received chunks are queued and written at their offsets by a background writer,
+ * so the receiving thread never waits for the disk unless the queue is full.
+ * Data is forced to the device once, when the sink is closed
+ *
+ * The copy is preallocated, so its size doesn't tell how much was downloaded. With trackProgress
+ * the length written from the start is saved to a progress file, for an interrupted download to resume from
+ */
+public class FileSink implements AutoCloseable {
+
+    // marks the end of the queue
+    private static final FTPData END = new FTPData();
+    // bytes written between two saves of the progress file
+    private static final long PROGRESS_INTERVAL = 1 << 20;
+
+    private final FileChannel channel;
+    private final BlockingQueue<FTPData> queue;
+    private final Thread writer;
+    // first error of the writer, reported to the caller on the next call
+    private volatile IOException failure;
+    // progress file, null if progress isn't tracked
+    private Path progress;
+    // end of the chunks written contiguously from the start, and the value last saved,
+    // used by the writer once chunks are queued
+    private long written;
+    private long saved;
+
+    /**
+     * @param path local copy path, truncated if it exists
+     * @param totalSize file size to preallocate
+     * @param queueSize max number of chunks waiting to be written
+     * @throws IOException
+     */
+    public FileSink(Path path, long totalSize, int queueSize) throws IOException {
+        this(path, totalSize, queueSize, true);
+    }
+
+    /**
+     * @param path local copy path
+     * @param totalSize file size to preallocate
+     * @param queueSize max number of chunks waiting to be written
+     * @param truncate drop existing content, false to patch chunks into an existing copy
+     * @throws IOException
+     */
+    public FileSink(Path path, long totalSize, int queueSize, boolean truncate) throws IOException {
+        channel = truncate
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        queue = new ArrayBlockingQueue<>(queueSize);
+
+        // preallocate, so chunk writes don't keep extending the file
+        // an existing copy longer than the file is cut to size
+        if (totalSize > 0 && channel.size() < totalSize) {
+            channel.write(ByteBuffer.wrap(new byte[1]), totalSize - 1);
+        } else if (channel.size() > totalSize) {
+            channel.truncate(totalSize);
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "file-sink-" + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Save the length of the copy written contiguously from the start to a progress file,
+     * every PROGRESS_INTERVAL bytes and on close. Call before the first write
+     *
+     * @param progress progress file, see readProgress
+     * @param start offset of the first chunk, the copy before it is already written
+     */
+    public void trackProgress(Path progress, long start) {
+        this.progress = progress;
+        written = start;
+        // a file left by an earlier download may be past start, overwrite it now
+        saved = -1;
+        saveProgress(0);
+    }
+
+    /**
+     * @param progress progress file saved by a sink
+     * @return length of the copy written from the start, 0 if the file is missing or unreadable
+     */
+    public static long readProgress(Path progress) {
+        try {
+            return Files.exists(progress)
+                    ? Long.parseLong(new String(Files.readAllBytes(progress), StandardCharsets.US_ASCII).trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Queue a chunk to be written at its offset, block only if the queue is full
+     *
+     * @param data received chunk
+     * @throws IOException writer failed earlier
+     */
+    public void write(FTPData data) throws IOException {
+        checkFailure();
+        try {
+            queue.put(data);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing chunk");
+        }
+    }
+
+    /**
+     * Wait for the queued chunks to be written, force them to the device and close the file
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            channel.close();
+            throw new InterruptedIOException("Interrupted while flushing file");
+        }
+
+        try {
+            checkFailure();
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writer loop, write chunks in queue order until END
+     */
+    private void drain() {
+        try {
+            while (true) {
+                FTPData data = queue.take();
+                if (data == END) {
+                    if (failure == null) saveProgress(0);
+                    return;
+                }
+                if (failure != null) continue;
+
+                ByteBuffer buffer = ByteBuffer.wrap(data.getData(), 0, data.getSize());
+                long position = data.getOffset();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                // a chunk out of order leaves a hole, progress stops before it
+                if (data.getOffset() == written) {
+                    written = position;
+                    saveProgress(PROGRESS_INTERVAL);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            // keep consuming so the receiving thread doesn't block on a full queue
+            drainAfterFailure();
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("File writer interrupted");
+        }
+    }
+
+    /**
+     * Save the progress if it moved at least interval bytes since last saved
+     * The data isn't forced first, the chunks before the saved length are checked on resume anyway
+     */
+    private void saveProgress(long interval) {
+        if (progress == null || written == saved || written - saved < interval) return;
+        try {
+            Files.write(progress, Long.toString(written).getBytes(StandardCharsets.US_ASCII));
+            saved = written;
+        } catch (IOException e) {
+            // only costs a longer download if it's interrupted
+            System.out.println("FileSink: failed to save progress, " + e.getMessage());
+        }
+    }
+
+    private void drainAfterFailure() {
+        try {
+            while (queue.take() != END);
+        } catch (InterruptedException e) {}
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) throw new IOException("Failed to write local copy", e);
+    }
+}
@@ -0,0 +1,68 @@
+package applications;
+
+import datatypes.FTPData;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Compare the download write path: a "rwd" RandomAccessFile opened per chunk
+ * versus the write-behind FileSink, over the same sequence of 512 KB chunks
+ */
+public class FileSinkBenchmark {
+
+    private static final int CHUNK_SIZE = 1024 * 512;
+
+    public static void main(String[] args) throws IOException {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        Path path = Paths.get(args.length > 1 ? args[1] : "sink_bench.tmp");
+        int size = sizeMB * 1024 * 1024;
+
+        byte[] content = new byte[CHUNK_SIZE];
+        new Random(42).nextBytes(content);
+
+        // warm up both paths on a small file
+        perChunkRwd(path, content, CHUNK_SIZE * 4);
+        writeBehind(path, content, CHUNK_SIZE * 4);
+
+        long rwd = perChunkRwd(path, content, size);
+        long sink = writeBehind(path, content, size);
+        Files.deleteIfExists(path);
+
+        System.out.printf("%d MB, %d KB chunks%n", sizeMB, CHUNK_SIZE / 1024);
+        System.out.printf("  rwd per chunk:  %8.1f ms, %8.1f MB/s%n", rwd / 1e6, sizeMB / (rwd / 1e9));
+        System.out.printf("  write-behind:   %8.1f ms, %8.1f MB/s%n", sink / 1e6, sizeMB / (sink / 1e9));
+    }
+
+    private static long perChunkRwd(Path path, byte[] content, int size) throws IOException {
+        Files.deleteIfExists(path);
+        long start = System.nanoTime();
+        for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, size - offset);
+            RandomAccessFile fileStream = new RandomAccessFile(path.toFile(), "rwd");
+            fileStream.seek(offset);
+            fileStream.write(content, 0, length);
+            fileStream.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long writeBehind(Path path, byte[] content, int size) throws IOException {
+        Files.deleteIfExists(path);
+        long start = System.nanoTime();
+        try (FileSink sink = new FileSink(path, size, 8)) {
+            for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+                FTPData data = new FTPData();
+                data.setData(content);
+                data.setOffset(offset);
+                data.setSize(Math.min(CHUNK_SIZE, size - offset));
+                sink.write(data);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
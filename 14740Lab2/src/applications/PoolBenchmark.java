@@ -0,0 +1,97 @@
+package applications;
+
+import services.ConnectionPool;
+import services.TTPConnection;
+import services.TTPService;
+
+import java.util.Arrays;
+
+/**
+ * Latency of small request/response exchanges with a server when every request opens its own connection,
+ * like a run of FTPClient, vs when the requests share connections from a ConnectionPool.
+ * Then leaves the pool idle to show the keep-alive probes and the idle eviction
+ */
+public class PoolBenchmark {
+
+    private static final String ADDR = BenchmarkHarness.ADDR;
+    private static final int KEEP_ALIVE_MILLIS = 200;
+    private static final int IDLE_TIMEOUT_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 6000;
+
+        startEchoServer(port);
+        byte[] request = new byte[64];
+
+        // a new service and connection per request, services can't be closed so each gets its own port
+        long[] fresh = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            TTPService client = BenchmarkHarness.service(port + 1 + i);
+            TTPConnection conn = client.connect(ADDR, (short) (port + 1 + i), ADDR, (short) port);
+            client.send(conn, request);
+            client.receive(conn);
+            client.close(conn);
+            fresh[i] = System.nanoTime() - start;
+            client.shutdown();
+        }
+
+        // one service, connection kept in the pool between requests
+        int poolPort = port + 1 + requests;
+        TTPService client = BenchmarkHarness.service(poolPort);
+        ConnectionPool pool = new ConnectionPool(client, ADDR, (short) poolPort,
+                IDLE_TIMEOUT_MILLIS, KEEP_ALIVE_MILLIS);
+        long[] pooled = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            TTPConnection conn = pool.acquire(ADDR, (short) port);
+            client.send(conn, request);
+            client.receive(conn);
+            pool.release(conn);
+            pooled[i] = System.nanoTime() - start;
+        }
+
+        report("new connection", fresh);
+        report("pooled", pooled);
+        System.out.println("PoolBenchmark: after requests, " + pool.report());
+
+        // idle: probed every keep-alive interval, then closed
+        Thread.sleep(IDLE_TIMEOUT_MILLIS + 3 * KEEP_ALIVE_MILLIS);
+        System.out.println("PoolBenchmark: after idle,     " + pool.report());
+        pool.close();
+        System.exit(0);
+    }
+
+    /**
+     * Server that answers every message with the same message, one thread per connection
+     *
+     * @param port server port
+     * @throws Exception
+     */
+    private static void startEchoServer(int port) throws Exception {
+        final TTPService server = BenchmarkHarness.service(port);
+        server.listen(8);
+
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    BenchmarkHarness.echo(server, server.accept());
+                }
+            } catch (InterruptedException e) {}
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void report(String name, long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long latency : sorted) {
+            sum += latency;
+        }
+        System.out.printf("PoolBenchmark: %-15s %d requests, avg %.2f ms, median %.2f ms%n",
+                name, sorted.length, sum / 1e6 / sorted.length, sorted[sorted.length / 2] / 1e6);
+    }
+}
@@ -0,0 +1,160 @@
+package applications;
+
+import datatypes.TTPSegment;
+import services.TTPConnection;
+import services.TTPService;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Data buffered by the receiving side when the consumer is slower than the network,
+ * receive() of whole messages vs a StreamPublisher subscriber whose demand is the receive window
+ */
+public class PublisherBenchmark {
+
+    private static final int MESSAGE_SIZE = 64 * 1024;
+    // segments the subscriber asks for ahead of what it has processed
+    private static final int PREFETCH = 16;
+    // consumer processing time per segment
+    private static final long NANOS_PER_SEGMENT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 6800;
+
+        PrintStream out = BenchmarkHarness.silence();
+        out.println(run("receive", messages, port, false));
+        out.println(run("publisher", messages, port + 2, true));
+        System.exit(0);
+    }
+
+    /**
+     * Send the messages as fast as the window allows, consume them slowly, sample the receive queue
+     *
+     * @param name mode name
+     * @param messages number of messages
+     * @param port server port, client uses the next one
+     * @param isPublisher consume through a subscriber, otherwise with receive
+     * @return result line
+     * @throws Exception
+     */
+    private static String run(String name, final int messages, int port, boolean isPublisher) throws Exception {
+        final BenchmarkHarness.Pair pair = BenchmarkHarness.connect(port, null);
+        final TTPConnection conn = pair.clientConn;
+
+        final AtomicInteger peak = new AtomicInteger();
+        Thread sampler = new Thread(() -> {
+            while (true) {
+                peak.accumulateAndGet(conn.queuedSegments(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+
+        // subscribed before anything is sent, the whole transfer runs on demand
+        long start = System.nanoTime();
+        CountDownLatch done = isPublisher ? subscribe(conn, (long) messages * MESSAGE_SIZE) : null;
+        BenchmarkHarness.Worker sender = BenchmarkHarness.start(() -> {
+            for (int i = 0; i < messages; i++) {
+                pair.server.send(pair.serverConn, new byte[MESSAGE_SIZE]);
+            }
+        });
+        sampler.start();
+        long bytes = isPublisher ? consumed(done) : consumeReceive(pair.client, conn, messages);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sampler.interrupt();
+        String failure = sender.join();
+
+        if (failure != null) return "PublisherBenchmark: " + name + " FAILED, " + failure;
+        return String.format("PublisherBenchmark: %-10s %d KB in %.2f s, peak %d segments (%d KB) queued at the receiver",
+                name, bytes / 1024, seconds, peak.get(), (long) peak.get() * TTPSegment.MAX_DATA_SIZE / 1024);
+    }
+
+    private static long consumeReceive(TTPService client, TTPConnection conn, int messages) throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < messages; i++) {
+            byte[] message = client.receive(conn);
+            process((message.length + TTPSegment.MAX_DATA_SIZE - 1) / TTPSegment.MAX_DATA_SIZE);
+            bytes += message.length;
+        }
+        return bytes;
+    }
+
+    // bytes processed by the subscriber
+    private static long subscriberBytes;
+
+    private static long consumed(CountDownLatch done) throws InterruptedException {
+        done.await();
+        return subscriberBytes;
+    }
+
+    /**
+     * Subscribe a slow consumer to the stream, it asks for one more segment every time it has processed one
+     *
+     * @param conn connection
+     * @param total bytes to consume
+     * @return counted down when everything is consumed
+     */
+    private static CountDownLatch subscribe(TTPConnection conn, final long total) {
+        final CountDownLatch done = new CountDownLatch(1);
+        final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        conn.publisher(TTPConnection.DEFAULT_STREAM).subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(PREFETCH);
+            }
+
+            @Override
+            public void onNext(final ByteBuffer data) {
+                // off the ReceiverThread, ask for the next segment once this one is processed
+                worker.execute(() -> {
+                    process(1);
+                    subscriberBytes += data.remaining();
+                    if (subscriberBytes >= total) {
+                        done.countDown();
+                    } else {
+                        subscription.request(1);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                e.printStackTrace();
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        return done;
+    }
+
+    private static void process(int segments) {
+        long end = System.nanoTime() + segments * NANOS_PER_SEGMENT;
+        while (System.nanoTime() < end) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package applications;
+
+import services.TTPConnection;
+import services.TTPService;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Latency of small control messages sent during a bulk transfer on the same connection,
+ * when they queue behind whole 512KB chunks on one stream vs when they have their own stream
+ * and interleave with the chunk segment by segment
+ */
+public class StreamBenchmark {
+
+    private static final int CHUNK_SIZE = 512 * 1024;
+    private static final int PING_INTERVAL_MILLIS = 20;
+    private static final int BULK_STREAM = 1;
+    private static final int CONTROL_STREAM = 2;
+
+    public static void main(String[] args) throws Exception {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        List<Long> single = run(chunks, port, false);
+        List<Long> multiplexed = run(chunks, port + 2, true);
+
+        report("one stream", single);
+        report("multiplexed", multiplexed);
+        System.exit(0);
+    }
+
+    /**
+     * Send chunks from one thread and timestamped pings from another, collect the ping latencies
+     *
+     * @param chunks number of bulk chunks
+     * @param port server port, client uses the next one
+     * @param isMultiplexed pings on their own stream, otherwise everything is one stream of whole messages
+     * @return ping latencies in nanos
+     * @throws Exception
+     */
+    private static List<Long> run(final int chunks, int port, final boolean isMultiplexed) throws Exception {
+        BenchmarkHarness.Pair pair = BenchmarkHarness.connect(port, null);
+        final TTPService server = pair.server;
+        final TTPService client = pair.client;
+        final TTPConnection conn = pair.clientConn;
+        final TTPConnection serverConn = pair.serverConn;
+
+        final int bulkStream = isMultiplexed ? BULK_STREAM : TTPConnection.DEFAULT_STREAM;
+        final int controlStream = isMultiplexed ? CONTROL_STREAM : TTPConnection.DEFAULT_STREAM;
+        // one stream carries whole messages one at a time
+        final Object messageLock = new Object();
+        final List<Long> latencies = new ArrayList<>();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Thread bulk = new Thread(() -> {
+            try {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                for (int i = 0; i < chunks; i++) {
+                    if (isMultiplexed) {
+                        client.send(conn, bulkStream, chunk);
+                    } else {
+                        synchronized (messageLock) {
+                            client.send(conn, bulkStream, chunk);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+
+        Thread pinger = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    // stamped when it's ready, waiting for a chunk to be sent counts
+                    ByteBuffer ping = ByteBuffer.allocate(8).putLong(0, System.nanoTime());
+                    if (isMultiplexed) {
+                        client.send(conn, controlStream, ping);
+                    } else {
+                        synchronized (messageLock) {
+                            client.send(conn, controlStream, ping);
+                        }
+                    }
+                    Thread.sleep(PING_INTERVAL_MILLIS);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+
+        // pings on their own stream get their own receiver
+        if (isMultiplexed) {
+            Thread pingReceiver = new Thread(() -> {
+                try {
+                    while (true) {
+                        record(latencies, server.receive(serverConn, controlStream, Integer.MAX_VALUE));
+                    }
+                } catch (Exception e) {
+                    // connection closed
+                }
+            });
+            pingReceiver.setDaemon(true);
+            pingReceiver.start();
+        }
+        bulk.start();
+        pinger.start();
+
+        // receive all the chunks, on one stream the pings are mixed in
+        int received = 0;
+        while (received < chunks) {
+            byte[] message = server.receive(serverConn, bulkStream, Integer.MAX_VALUE);
+            if (message.length == 8) {
+                record(latencies, message);
+            } else {
+                received++;
+            }
+        }
+
+        done.set(true);
+        bulk.join();
+        pinger.join();
+        synchronized (latencies) {
+            return new ArrayList<>(latencies);
+        }
+    }
+
+    private static void record(List<Long> latencies, byte[] ping) {
+        long latency = System.nanoTime() - ByteBuffer.wrap(ping).getLong();
+        synchronized (latencies) {
+            latencies.add(latency);
+        }
+    }
+
+    private static void report(String name, List<Long> latencies) {
+        long max = 0;
+        long sum = 0;
+        for (long latency : latencies) {
+            max = Math.max(max, latency);
+            sum += latency;
+        }
+        System.out.printf("StreamBenchmark: %-12s %d pings, avg %.1f ms, max %.1f ms%n",
+                name, latencies.size(), latencies.isEmpty() ? 0.0 : sum / 1e6 / latencies.size(), max / 1e6);
+    }
+}
@@ -0,0 +1,69 @@
+package applications;
+
+import datatypes.FTPData;
+import services.DataUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Compare download verification: hashing the local copy after the transfer
+ * versus a running MD5 updated as each chunk is received
+ */
+public class VerifyBenchmark {
+
+    private static final int CHUNK_SIZE = 1024 * 512;
+
+    public static void main(String[] args) throws IOException {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        Path path = Paths.get(args.length > 1 ? args[1] : "verify_bench.tmp");
+        int size = sizeMB * 1024 * 1024;
+
+        byte[] content = new byte[CHUNK_SIZE];
+        new Random(42).nextBytes(content);
+
+        // warm up both paths on a small file
+        rehash(path, content, CHUNK_SIZE * 4);
+        running(path, content, CHUNK_SIZE * 4);
+
+        long rehash = rehash(path, content, size);
+        long running = running(path, content, size);
+        Files.deleteIfExists(path);
+
+        System.out.printf("%d MB, %d KB chunks%n", sizeMB, CHUNK_SIZE / 1024);
+        System.out.printf("  write + re-read MD5: %8.1f ms%n", rehash / 1e6);
+        System.out.printf("  running MD5:         %8.1f ms%n", running / 1e6);
+    }
+
+    private static long rehash(Path path, byte[] content, int size) throws IOException {
+        long start = System.nanoTime();
+        write(path, content, size, null);
+        DataUtil.getMD5Checksum(path.toString());
+        return System.nanoTime() - start;
+    }
+
+    private static long running(Path path, byte[] content, int size) throws IOException {
+        long start = System.nanoTime();
+        MessageDigest digest = DataUtil.newMD5();
+        write(path, content, size, digest);
+        DataUtil.digestToString(digest.digest());
+        return System.nanoTime() - start;
+    }
+
+    private static void write(Path path, byte[] content, int size, MessageDigest digest) throws IOException {
+        try (FileSink sink = new FileSink(path, size, 8)) {
+            for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+                FTPData data = new FTPData();
+                data.setData(content);
+                data.setOffset(offset);
+                data.setSize(Math.min(CHUNK_SIZE, size - offset));
+                if (digest != null) digest.update(data.getData(), 0, data.getSize());
+                sink.write(data);
+            }
+        }
+    }
+}
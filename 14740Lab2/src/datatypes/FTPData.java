@@ -9,6 +9,9 @@ public class FTPData implements Serializable {
 
     private String path;
     private byte[] data;
+    // offset of this chunk in the file
+    private long offset;
+    // chunk size, a chunk is always held in one array
     private int size;
 
 
@@ -28,6 +31,14 @@ public class FTPData implements Serializable {
         this.path = path;
     }
 
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
     public int getSize() {
         return size;
     }
@@ -9,8 +9,20 @@ public class FTPMeta implements Serializable {
 
     private boolean isFound;
     private String path;
-    private int totalSize;
+    private long totalSize;
+    // range of the file the server sends in response to the request
+    private long offset;
+    private long length;
     private String md5Checksum;
+    // checksum isn't known in advance, server sends it after the last chunk
+    private boolean digestTrailer;
+    // file is sent in chunks of this size, aligned to the start of file
+    private int chunkSize;
+    // MD5 of every chunk, lets client re-request only the corrupted chunks
+    private byte[][] chunkChecksums;
+    // chunks that shrink are deflated at this level, chunk checksums are always of the raw content
+    private boolean compressed;
+    private int compressionLevel;
 
     public String getPath() {
         return path;
@@ -28,11 +40,67 @@ public class FTPMeta implements Serializable {
         this.md5Checksum = md5Checksum;
     }
 
-    public int getTotalSize() {
+    public boolean isDigestTrailer() {
+        return digestTrailer;
+    }
+
+    public void setDigestTrailer(boolean digestTrailer) {
+        this.digestTrailer = digestTrailer;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public byte[][] getChunkChecksums() {
+        return chunkChecksums;
+    }
+
+    public void setChunkChecksums(byte[][] chunkChecksums) {
+        this.chunkChecksums = chunkChecksums;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public long getTotalSize() {
         return totalSize;
     }
 
-    public void setTotalSize(int totalSize) {
+    public void setTotalSize(long totalSize) {
         this.totalSize = totalSize;
     }
 
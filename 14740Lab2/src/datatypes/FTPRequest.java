@@ -0,0 +1,78 @@
+package datatypes;
+
+import java.io.Serializable;
+
+/**
+ * File request client sends to server, a whole file or a byte range of it
+ */
+public class FTPRequest implements Serializable {
+
+    private String path;
+    // first byte requested
+    private long offset;
+    // number of bytes requested, -1 for the rest of the file
+    private long length = -1;
+    // chunk checksums wanted from this byte on, before the range too so a client can check its copy,
+    // -1 for the range only
+    private long checksumOffset = -1;
+    // ask the server to deflate the chunks
+    private boolean compress;
+    private int compressionLevel;
+
+    public FTPRequest() {
+    }
+
+    public FTPRequest(String path, long offset, long length) {
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void setLength(long length) {
+        this.length = length;
+    }
+
+    public long getChecksumOffset() {
+        return checksumOffset;
+    }
+
+    public void setChecksumOffset(long checksumOffset) {
+        this.checksumOffset = checksumOffset;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+}
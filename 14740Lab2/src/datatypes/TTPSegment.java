@@ -6,8 +6,15 @@ public class TTPSegment implements Serializable {
 
     /**
      * Use a large value here to save the trouble of calculate object size
+     * measured: every header field, type names and two addresses of MAX_ADDRESS_LENGTH, with about 20 bytes to spare
      */
-    public static final int HEADER_SIZE = 228;
+    public static final int HEADER_SIZE = 290;
+
+    /**
+     * longest address a datagram carries, a full IPv6 literal with an IPv4 tail,
+     * HEADER_SIZE leaves no room for longer host names
+     */
+    public static final int MAX_ADDRESS_LENGTH = 45;
 
     /**
      * max size of datagram is 1500, other datagram header file at least take 172 byte
@@ -15,6 +22,11 @@ public class TTPSegment implements Serializable {
      */
     public static final int MAX_SEGMENT_SIZE = 1300;
 
+    /**
+     * DatagramService receives into a buffer of this size, a larger datagram never gets through
+     */
+    public static final int MAX_DATAGRAM_SIZE = 1500;
+
     public static final int MAX_DATA_SIZE = MAX_SEGMENT_SIZE - HEADER_SIZE;
 
     public enum Type {
@@ -24,7 +36,9 @@ public class TTPSegment implements Serializable {
         FIN,
         FIN_ACK,
         DATA, // contains data, there's more following, needs reassemble
-        EOF;  // contains data, and it's the last fragment
+        EOF,  // contains data, and it's the last fragment
+        BATCH, // several whole small messages of a stream, each prefixed with its length
+        FEC;   // XOR parity of the DATA/EOF/BATCH segments [ackNum, seqNum), see services.FecEncoder
     }
 
     private Type type;
@@ -32,6 +46,24 @@ public class TTPSegment implements Serializable {
     private int ackNum;
     private int size;
     private byte[] data;
+    // stream of the connection the fragment belongs to, each stream is reassembled on its own
+    private int streamId;
+    // receive window of the sender, in segments it can take beyond ackNum, valid for ACK,
+    // a FEC segment carries the XOR of its group's type ordinals here instead
+    private int window = Integer.MAX_VALUE;
+
+    /**
+     * Put every field back to its default, so the segment can be reused
+     */
+    public void clear() {
+        type = null;
+        seqNum = 0;
+        ackNum = 0;
+        size = 0;
+        data = null;
+        streamId = 0;
+        window = Integer.MAX_VALUE;
+    }
 
     public Type getType() {
         return type;
@@ -72,4 +104,20 @@ public class TTPSegment implements Serializable {
     public void setSize(int size) {
         this.size = size;
     }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public void setStreamId(int streamId) {
+        this.streamId = streamId;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int window) {
+        this.window = window;
+    }
 }
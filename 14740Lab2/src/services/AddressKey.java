@@ -0,0 +1,231 @@
+package services;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Connection key packed into primitives: 128 bit address and port
+ * IPv4 addresses are stored in the IPv4-mapped IPv6 form (::ffff:a.b.c.d), so both families share one layout
+ *
+ * The key is mutable so the ReceiverThread can reuse a single instance for every packet it demultiplexes,
+ * keys stored in ConnectionTable are always private copies
+ */
+public final class AddressKey {
+
+    private static final long IPV4_MAPPED_PREFIX = 0x0000FFFF00000000L;
+
+    // upper and lower 64 bits of the address
+    long hi;
+    long lo;
+    // port, stored unsigned
+    int port;
+
+    public AddressKey() {
+    }
+
+    public AddressKey(String addr, short port) throws UnknownHostException {
+        set(addr, port);
+    }
+
+    private AddressKey(long hi, long lo, int port) {
+        this.hi = hi;
+        this.lo = lo;
+        this.port = port;
+    }
+
+    /**
+     * Pack a textual address and port into this key
+     * IPv4 and IPv6 literals are parsed in place without allocating,
+     * host names fall back to a resolver lookup
+     *
+     * @param addr address literal or host name
+     * @param port port
+     * @return this key
+     * @throws UnknownHostException address can't be resolved
+     */
+    public AddressKey set(String addr, short port) throws UnknownHostException {
+        this.port = port & 0xFFFF;
+
+        long v4 = parseIPv4(addr, 0, addr.length());
+        if (v4 >= 0) {
+            hi = 0;
+            lo = IPV4_MAPPED_PREFIX | v4;
+            return this;
+        }
+
+        if (parseIPv6(addr)) return this;
+
+        // not a literal, resolve it
+        byte[] bytes = InetAddress.getByName(addr).getAddress();
+        if (bytes.length == 4) {
+            lo = IPV4_MAPPED_PREFIX | (toLong(bytes, 0, 4));
+            hi = 0;
+        } else {
+            hi = toLong(bytes, 0, 8);
+            lo = toLong(bytes, 8, 8);
+        }
+        return this;
+    }
+
+    /**
+     * @return an immutable-by-convention copy that is safe to store in a table
+     */
+    public AddressKey copy() {
+        return new AddressKey(hi, lo, port);
+    }
+
+    boolean matches(long hi, long lo, int port) {
+        return this.hi == hi && this.lo == lo && this.port == port;
+    }
+
+    /**
+     * Mixed hash over all the key bits, used for slot selection in ConnectionTable
+     * @return hash
+     */
+    int hash() {
+        long h = hi * 0x9E3779B97F4A7C15L;
+        h ^= lo * 0xC2B2AE3D27D4EB4FL;
+        h ^= port * 0x165667B19E3779F9L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AddressKey)) return false;
+        AddressKey other = (AddressKey) o;
+        return matches(other.hi, other.lo, other.port);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toHexString(hi) + ":" + Long.toHexString(lo) + "/" + port;
+    }
+
+    /**
+     * Parse dotted quad IPv4 address in s[from, to)
+     * @return address as unsigned 32 bits, or -1 if not a valid IPv4 literal
+     */
+    private static long parseIPv4(String s, int from, int to) {
+        long addr = 0;
+        int octets = 0;
+        int value = -1;
+
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                if (value < 0 || octets == 3) return -1;
+                addr = (addr << 8) | value;
+                octets++;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) return -1;
+            } else {
+                return -1;
+            }
+        }
+
+        if (value < 0 || octets != 3) return -1;
+        return (addr << 8) | value;
+    }
+
+    /**
+     * Parse IPv6 literal, with optional "::" compression and IPv4 tail
+     * @return is valid IPv6 literal
+     */
+    private boolean parseIPv6(String s) {
+        hi = 0;
+        lo = 0;
+
+        int len = s.length();
+        int dbl = s.indexOf("::");
+
+        // no compression, must be exactly 8 groups
+        if (dbl < 0) return parseGroups(s, 0, len, 0) == 8;
+        if (s.indexOf("::", dbl + 1) >= 0) return false;
+
+        // groups before "::" are left aligned
+        int left = dbl == 0 ? 0 : parseGroups(s, 0, dbl, 0);
+        if (left < 0) return false;
+
+        int rightStart = dbl + 2;
+        if (rightStart == len) return left <= 7;
+
+        // groups after "::" are right aligned
+        int right = countGroups(s, rightStart, len);
+        if (left + right > 7) return false;
+        return parseGroups(s, rightStart, len, 8 - right) == right;
+    }
+
+    /**
+     * Parse colon separated hex groups in s[from, to), starting at group index
+     * @return number of groups parsed, or -1 on syntax error
+     */
+    private int parseGroups(String s, int from, int to, int index) {
+        int count = 0;
+        int pos = from;
+
+        while (pos < to) {
+            int end = pos;
+            int value = 0;
+            while (end < to && s.charAt(end) != ':') {
+                if (s.charAt(end) == '.') {
+                    // embedded IPv4 tail takes the last 2 groups
+                    long v4 = parseIPv4(s, pos, to);
+                    if (v4 < 0 || index + count > 6) return -1;
+                    setGroup(index + count, (int) (v4 >>> 16));
+                    setGroup(index + count + 1, (int) (v4 & 0xFFFF));
+                    return count + 2;
+                }
+                int digit = Character.digit(s.charAt(end), 16);
+                if (digit < 0 || end - pos >= 4) return -1;
+                value = (value << 4) | digit;
+                end++;
+            }
+
+            if (end == pos || index + count > 7) return -1;
+            setGroup(index + count, value);
+            count++;
+
+            pos = end + 1;
+            // trailing ':'
+            if (pos == to) return -1;
+        }
+        return count;
+    }
+
+    private static int countGroups(String s, int from, int to) {
+        int groups = 1;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == ':') groups++;
+            else if (c == '.') {
+                // IPv4 tail counts as 2 groups, only 1 is counted by ':' separation
+                return groups + 1;
+            }
+        }
+        return groups;
+    }
+
+    private void setGroup(int index, int value) {
+        long v = value & 0xFFFFL;
+        if (index < 4) hi |= v << (16 * (3 - index));
+        else lo |= v << (16 * (7 - index));
+    }
+
+    private static long toLong(byte[] bytes, int off, int len) {
+        long v = 0;
+        for (int i = off; i < off + len; i++) {
+            v = (v << 8) | (bytes[i] & 0xFF);
+        }
+        return v;
+    }
+}
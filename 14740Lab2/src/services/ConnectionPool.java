@@ -0,0 +1,296 @@
+package services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side pool of open connections, so an application that sends many requests to the same servers
+ * doesn't pay a handshake and a teardown for each of them
+ *
+ * All the connections share one TTPService, which tells connections apart by the server address and port,
+ * so the pool keeps at most one connection per server and lends it to one user at a time,
+ * other users of the same server wait until it's released
+ *
+ * A maintenance thread sends keep-alive probes on connections idle in the pool, drops the ones
+ * whose server stopped answering and closes the ones idle longer than the idle timeout
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    // unanswered keep-alive intervals before a connection is considered dead
+    private static final int DEAD_PROBES = 3;
+
+    private final TTPService ttpService;
+    private final String srcAddr;
+    private final short srcPort;
+    private final long idleTimeoutNanos;
+    private final long keepAliveNanos;
+    // probes and evictions, closing waits for the FIN_ACK so it can't run on the service's timer
+    private final ScheduledExecutorService maintenance;
+
+    // key: "address:port" of the server, same as the connection tag
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean isClosed;
+
+    private long created;
+    private long reused;
+    private long probes;
+    private long idleEvictions;
+    private long deadEvictions;
+
+    /**
+     * @param ttpService service the connections are opened on
+     * @param srcAddr local address
+     * @param srcPort local port the service is bound to
+     * @param idleTimeoutMillis an unused connection is closed after this long
+     * @param keepAliveMillis an unused connection silent for this long is probed
+     */
+    public ConnectionPool(TTPService ttpService, String srcAddr, short srcPort,
+                          long idleTimeoutMillis, long keepAliveMillis) {
+        if (keepAliveMillis <= 0) throw new IllegalArgumentException("keep-alive must be positive: " + keepAliveMillis);
+        this.ttpService = ttpService;
+        this.srcAddr = srcAddr;
+        this.srcPort = srcPort;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ttp-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, keepAliveMillis, keepAliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take the pooled connection to a server, connect if there's none
+     * Blocks while another user holds the connection to the same server
+     *
+     * @param dstAddr server address
+     * @param dstPort server port
+     * @return connection, must be given back with release or discard
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    public TTPConnection acquire(String dstAddr, short dstPort)
+            throws IOException, ClassNotFoundException, InterruptedException {
+        String server = dstAddr + ":" + dstPort;
+        Entry entry;
+        synchronized (this) {
+            while (true) {
+                if (isClosed) throw new IllegalStateException("ConnectionPool is closed");
+
+                entry = entries.get(server);
+                // closed by the server while it was idle
+                if (entry != null && !entry.leased && !entry.conn.isActive) {
+                    entries.remove(server);
+                    entry = null;
+                }
+                if (entry == null) {
+                    entry = new Entry();
+                    entry.leased = true;
+                    entries.put(server, entry);
+                    break;
+                }
+                if (!entry.leased) {
+                    entry.leased = true;
+                    reused++;
+                    return entry.conn;
+                }
+                wait();
+            }
+        }
+
+        // handshake outside the lock, users of other servers go on meanwhile
+        try {
+            TTPConnection conn = ttpService.connect(srcAddr, srcPort, dstAddr, dstPort);
+            synchronized (this) {
+                entry.conn = conn;
+                created++;
+            }
+            return conn;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            synchronized (this) {
+                entries.remove(server);
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Give a connection back to the pool, it stays open for the next user of the server
+     * @param conn connection returned by acquire
+     */
+    public void release(TTPConnection conn) {
+        synchronized (this) {
+            Entry entry = entries.get(conn.getTag());
+            if (entry == null || entry.conn != conn) return;
+
+            if (!isClosed && conn.isActive) {
+                entry.leased = false;
+                entry.releasedAt = System.nanoTime();
+                notifyAll();
+                return;
+            }
+            entries.remove(conn.getTag());
+            notifyAll();
+        }
+        // pool closed while it was in use
+        if (conn.isActive) closeQuietly(conn);
+    }
+
+    /**
+     * Give back a connection that failed in use, e.g. a response couldn't be parsed,
+     * it's dropped without the FIN exchange instead of being reused
+     *
+     * @param conn connection returned by acquire
+     */
+    public void discard(TTPConnection conn) {
+        synchronized (this) {
+            Entry entry = entries.get(conn.getTag());
+            if (entry == null || entry.conn != conn) return;
+            entries.remove(conn.getTag());
+            notifyAll();
+        }
+        ttpService.abort(conn);
+    }
+
+    /**
+     * Maintenance task, every keep-alive interval
+     * dead: idle and nothing heard from the server for DEAD_PROBES intervals, dropped
+     * idle: unused for the idle timeout, closed
+     * silent: nothing heard for a keep-alive interval, probed
+     */
+    private void maintain() {
+        List<TTPConnection> dead = new ArrayList<>();
+        List<TTPConnection> idle = new ArrayList<>();
+        List<TTPConnection> silent = new ArrayList<>();
+
+        long now = System.nanoTime();
+        synchronized (this) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.leased) continue;
+
+                TTPConnection conn = entry.conn;
+                // a connection held quietly by its user isn't probed until it's released
+                long silence = now - Math.max(conn.getLastReceived(), entry.releasedAt);
+                if (!conn.isActive || silence > DEAD_PROBES * keepAliveNanos) {
+                    it.remove();
+                    dead.add(conn);
+                } else if (now - entry.releasedAt >= idleTimeoutNanos) {
+                    it.remove();
+                    idle.add(conn);
+                } else if (silence >= keepAliveNanos) {
+                    silent.add(conn);
+                }
+            }
+        }
+
+        for (TTPConnection conn : dead) {
+            System.out.println("ConnectionPool: " + conn.getTag() + " not answering, dropped");
+            ttpService.abort(conn);
+        }
+        for (TTPConnection conn : silent) {
+            try {
+                if (ttpService.sendKeepAlive(conn)) {
+                    synchronized (this) {
+                        probes++;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (TTPConnection conn : idle) {
+            System.out.println("ConnectionPool: " + conn.getTag() + " idle, closed");
+            closeQuietly(conn);
+        }
+
+        synchronized (this) {
+            deadEvictions += dead.size();
+            idleEvictions += idle.size();
+        }
+    }
+
+    private void closeQuietly(TTPConnection conn) {
+        try {
+            ttpService.close(conn);
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop the maintenance and close the idle connections,
+     * connections in use are closed when they're released
+     */
+    @Override
+    public void close() {
+        List<TTPConnection> idle = new ArrayList<>();
+        synchronized (this) {
+            if (isClosed) return;
+            isClosed = true;
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (!entry.leased) {
+                    it.remove();
+                    idle.add(entry.conn);
+                }
+            }
+            notifyAll();
+        }
+        maintenance.shutdownNow();
+
+        for (TTPConnection conn : idle) {
+            if (conn.isActive) closeQuietly(conn);
+        }
+    }
+
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * @return connections opened and reused, keep-alive probes and evictions
+     */
+    public synchronized String report() {
+        return String.format("%d connections, %d opened, %d reused, %d probes, %d idle evictions, %d dead evictions",
+                entries.size(), created, reused, probes, idleEvictions, deadEvictions);
+    }
+
+    /**
+     * Pooled connection to one server
+     */
+    private static final class Entry {
+        // null while the handshake is in progress, which counts as leased
+        TTPConnection conn;
+        boolean leased;
+        // System.nanoTime of the last release
+        long releasedAt;
+    }
+}
@@ -0,0 +1,197 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing table of connections keyed by AddressKey
+ *
+ * Lookups are lock free and allocate nothing, so the ReceiverThread never blocks on threads
+ * that add or remove connections. Writers are rare (handshake and teardown) and serialize on the table,
+ * a resize builds a new slot array and publishes it in one volatile write
+ */
+public class ConnectionTable {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // marks a removed slot, keeps probe chains intact
+    private static final Entry TOMBSTONE = new Entry(new AddressKey(), null);
+
+    // linear probing slots, length is always a power of 2
+    private volatile AtomicReferenceArray<Entry> slots;
+    // live entries
+    private volatile int size;
+    // live entries + tombstones, guarded by this
+    private int used;
+
+    public ConnectionTable() {
+        this(16);
+    }
+
+    public ConnectionTable(int expected) {
+        slots = new AtomicReferenceArray<>(capacityFor(expected));
+    }
+
+    /**
+     * Find the connection mapped to the key, lock free
+     *
+     * @param key packed address and port
+     * @return connection, null if not found
+     */
+    public TTPConnection get(AddressKey key) {
+        AtomicReferenceArray<Entry> tab = slots;
+        int mask = tab.length() - 1;
+        int i = key.hash() & mask;
+
+        for (int probes = 0; probes <= mask; probes++) {
+            Entry e = tab.get(i);
+            if (e == null) return null;
+            if (e != TOMBSTONE && e.key.matches(key.hi, key.lo, key.port)) return e.conn;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(AddressKey key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Map the key to a connection, replacing previous mapping
+     *
+     * @param key packed address and port, copied into the table
+     * @param conn connection
+     * @return previous connection, or null
+     */
+    public synchronized TTPConnection put(AddressKey key, TTPConnection conn) {
+        if (used + 1 > slots.length() * LOAD_FACTOR) {
+            rehash(size + 1);
+        }
+
+        AtomicReferenceArray<Entry> tab = slots;
+        int mask = tab.length() - 1;
+        int i = key.hash() & mask;
+        int free = -1;
+
+        // walk the whole probe chain, the key may sit behind a tombstone
+        while (true) {
+            Entry e = tab.get(i);
+            if (e == null) break;
+            if (e == TOMBSTONE) {
+                if (free < 0) free = i;
+            } else if (e.key.matches(key.hi, key.lo, key.port)) {
+                tab.set(i, new Entry(e.key, conn));
+                return e.conn;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (free < 0) {
+            free = i;
+            used++;
+        }
+        tab.set(free, new Entry(key.copy(), conn));
+        size++;
+        return null;
+    }
+
+    /**
+     * Remove the mapping of the key
+     *
+     * @param key packed address and port
+     * @return removed connection, or null
+     */
+    public synchronized TTPConnection remove(AddressKey key) {
+        AtomicReferenceArray<Entry> tab = slots;
+        int mask = tab.length() - 1;
+        int i = key.hash() & mask;
+
+        while (true) {
+            Entry e = tab.get(i);
+            if (e == null) return null;
+            if (e != TOMBSTONE && e.key.matches(key.hi, key.lo, key.port)) {
+                tab.set(i, TOMBSTONE);
+                size--;
+                return e.conn;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Remove the mapping of the key only if it still maps to the connection,
+     * a connection that lingers after close mustn't remove a newer one to the same peer
+     *
+     * @param key packed address and port
+     * @param conn connection
+     * @return whether it was removed
+     */
+    public synchronized boolean remove(AddressKey key, TTPConnection conn) {
+        if (get(key) != conn) return false;
+        remove(key);
+        return true;
+    }
+
+    /**
+     * Snapshot of all the connections in the table
+     * @return connection list
+     */
+    public List<TTPConnection> values() {
+        AtomicReferenceArray<Entry> tab = slots;
+        List<TTPConnection> list = new ArrayList<>(size);
+        for (int i = 0; i < tab.length(); i++) {
+            Entry e = tab.get(i);
+            if (e != null && e != TOMBSTONE) list.add(e.conn);
+        }
+        return list;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Copy live entries to a new slot array and drop tombstones, caller holds the lock
+     * @param expected expected number of entries
+     */
+    private void rehash(int expected) {
+        AtomicReferenceArray<Entry> old = slots;
+        AtomicReferenceArray<Entry> tab = new AtomicReferenceArray<>(capacityFor(expected));
+        int mask = tab.length() - 1;
+
+        for (int j = 0; j < old.length(); j++) {
+            Entry e = old.get(j);
+            if (e == null || e == TOMBSTONE) continue;
+            int i = e.key.hash() & mask;
+            while (tab.get(i) != null) i = (i + 1) & mask;
+            tab.set(i, e);
+        }
+
+        used = size;
+        slots = tab;
+    }
+
+    private static int capacityFor(int expected) {
+        int cap = 16;
+        while (cap * LOAD_FACTOR < expected * 2) cap <<= 1;
+        return cap;
+    }
+
+    /**
+     * Immutable slot content
+     */
+    private static final class Entry {
+        final AddressKey key;
+        final TTPConnection conn;
+
+        Entry(AddressKey key, TTPConnection conn) {
+            this.key = key;
+            this.conn = conn;
+        }
+    }
+}
@@ -1,14 +1,29 @@
 package services;
 
+import datatypes.Datagram;
+import datatypes.FTPData;
+import datatypes.TTPSegment;
+
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Util that handles data object to be feed in the transport channel
  */
 public class DataUtil {
 
+    /**
+     * FTPData goes on the wire as a fixed binary header followed by the raw chunk,
+     * so the server can send file content without serializing it
+     * header: offset (long) | size (int) | encoded size (int)
+     * the chunk is deflated when the encoded size differs from size
+     */
+    public static final int FTP_DATA_HEADER_SIZE = 16;
+
     /**
      * Serialize data object to byte array
      *
@@ -27,6 +42,102 @@ public class DataUtil {
         }
     }
 
+    /**
+     * Serialized size of the largest datagram TTP sends: a segment of every type with MAX_DATA_SIZE bytes
+     * and every header field at its widest, between addresses of TTPSegment.MAX_ADDRESS_LENGTH
+     *
+     * @return size in bytes
+     */
+    public static int maxDatagramSize() {
+        String addr = "ffff:ffff:ffff:ffff:ffff:ffff:255.255.255.255";
+        int max = 0;
+        for (TTPSegment.Type type : TTPSegment.Type.values()) {
+            TTPSegment segment = new TTPSegment();
+            segment.setType(type);
+            segment.setSeqNum(Integer.MIN_VALUE);
+            segment.setAckNum(Integer.MIN_VALUE);
+            segment.setSize(TTPSegment.MAX_DATA_SIZE);
+            segment.setStreamId(Integer.MIN_VALUE);
+            segment.setWindow(Integer.MIN_VALUE);
+            segment.setData(new byte[TTPSegment.MAX_DATA_SIZE]);
+            Datagram datagram = new Datagram(addr, addr,
+                    Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE, segment);
+            max = Math.max(max, objectToByte(datagram).length);
+        }
+        return max;
+    }
+
+    // serialization buffer of each thread, for checksums
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<>();
+
+    /**
+     * Checksum of a serialized object, the UDP approach
+     * Serialized into a buffer kept by the calling thread, so nothing but the stream's own bookkeeping
+     * is allocated. The form isn't the one of objectToByte, both ends must compute checksums with this
+     *
+     * @param object object
+     * @return checksum
+     */
+    public static short getSerializedCheckSum(Object object) {
+        Scratch scratch = scratch(object);
+        return getUDPCheckSum(scratch.buffer(), scratch.size());
+    }
+
+    /**
+     * @param object object
+     * @return size of the object serialized, in the form getSerializedCheckSum checksums
+     */
+    public static int serializedSize(Object object) {
+        return scratch(object).size();
+    }
+
+    private static Scratch scratch(Object object) {
+        Scratch scratch = SCRATCH.get();
+        if (scratch == null) {
+            scratch = new Scratch();
+            SCRATCH.set(scratch);
+        }
+        try {
+            scratch.write(object);
+        } catch (IOException e) {
+            // the stream is unusable after a failed write, start over with a new one next time
+            e.printStackTrace();
+            SCRATCH.remove();
+        }
+        return scratch;
+    }
+
+    /**
+     * Byte buffer with an ObjectOutputStream on it, both reused for every object
+     * Each object is written after a stream reset, so it's written whole and the same object
+     * always gives the same bytes
+     */
+    private static final class Scratch extends ByteArrayOutputStream {
+        private final ObjectOutputStream out;
+
+        Scratch() {
+            super(1500);
+            try {
+                out = new ObjectOutputStream(this);
+                out.flush();
+            } catch (IOException e) {
+                // writing to memory doesn't fail
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void write(Object object) throws IOException {
+            reset();
+            out.reset();
+            out.writeObject(object);
+            out.flush();
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
     /**
      * Deserialize object from byte array
      *
@@ -47,13 +158,78 @@ public class DataUtil {
     }
 
 
+    /**
+     * Build the wire header of a FTPData chunk
+     *
+     * @param offset offset of the chunk in file
+     * @param size chunk size
+     * @param encodedSize number of bytes following the header, size if the chunk isn't compressed
+     * @return header buffer, ready to be sent
+     */
+    public static ByteBuffer ftpDataHeader(long offset, int size, int encodedSize) {
+        ByteBuffer header = ByteBuffer.allocate(FTP_DATA_HEADER_SIZE);
+        header.putLong(offset);
+        header.putInt(size);
+        header.putInt(encodedSize);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Decode a FTPData chunk from a received message
+     *
+     * @param message header followed by the chunk
+     * @param inflater inflater for compressed chunks, reset before use, may be null if compression is off
+     * @return FTPData
+     */
+    public static FTPData byteToFTPData(byte[] message, Inflater inflater) {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        FTPData data = new FTPData();
+        data.setOffset(buffer.getLong());
+        data.setSize(buffer.getInt());
+        int encodedSize = buffer.getInt();
+
+        byte[] content = new byte[data.getSize()];
+        data.setData(content);
+        if (encodedSize == data.getSize()) {
+            buffer.get(content);
+            return data;
+        }
+
+        // a chunk that can't be inflated is left zeroed, its checksum won't match and it's requested again
+        try {
+            if (inflater == null) throw new DataFormatException("compressed chunk, compression is off");
+            inflater.reset();
+            inflater.setInput(message, buffer.position(), encodedSize);
+            int n = 0;
+            while (n < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, n, content.length - n);
+                if (inflated == 0 && inflater.needsInput()) throw new DataFormatException("truncated chunk");
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            System.out.println("Failed to inflate chunk at " + data.getOffset() + ": " + e.getMessage());
+        }
+        return data;
+    }
+
     /***
      * Calculate checksum use the UDP approach
      *
      * @return checksum
      */
     public static short getUDPCheckSum(byte[] data){
-        int length = data.length;
+        return getUDPCheckSum(data, data.length);
+    }
+
+    /***
+     * Calculate checksum of the first bytes of an array, the UDP approach
+     *
+     * @param data data
+     * @param length number of bytes
+     * @return checksum
+     */
+    public static short getUDPCheckSum(byte[] data, int length){
         int sum = 0;
 
         // divide data into 16 bits words, add then together
@@ -85,15 +261,9 @@ public class DataUtil {
         byte[] buffer = new byte[1024];
 
         InputStream fis =  new FileInputStream(path);
-        MessageDigest messageDigest = null;
+        MessageDigest messageDigest = newMD5();
         byte[] digest = null;
 
-        try{
-            messageDigest = MessageDigest.getInstance("MD5");
-        }catch (NoSuchAlgorithmException e) {
-            return null;
-        }
-
         try{
 
             int retVal = 0;
@@ -109,6 +279,38 @@ public class DataUtil {
 
         } catch (IOException e) {}
 
+        return digestToString(digest);
+    }
+
+    /**
+     * Number of chunks a file is sent in
+     *
+     * @param size file size
+     * @param chunkSize chunk size
+     * @return number of chunks
+     */
+    public static int chunkCount(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return a new MD5 MessageDigest
+     */
+    public static MessageDigest newMD5() {
+        try{
+            return MessageDigest.getInstance("MD5");
+        }catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * String form of a digest, the form both ends compare
+     * @param digest digest bytes
+     * @return checksum string
+     */
+    public static String digestToString(byte[] digest) {
         return new String(digest);
     }
 }
@@ -0,0 +1,157 @@
+package services;
+
+import datatypes.Datagram;
+import datatypes.TTPSegment;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Receiving side of FecEncoder, rebuilds a segment missing from a group out of the others and the parity
+ * Go-Back-N drops everything past a hole, this keeps what a parity may need instead:
+ * - copies of the last data segments received in order, the application reuses the originals once
+ *   their message is reassembled
+ * - DATA/EOF/BATCH and FEC segments that arrived past the next expected one
+ *
+ * A connection gets one with the first FEC segment from its peer. Only the ReceiverThread uses it
+ */
+final class FecDecoder {
+
+    // a whole group and its parity past a hole, and the start of the next group
+    private static final int MAX_HELD = 2 * FecEncoder.MAX_GROUP_SIZE;
+
+    private final SegmentPool pool;
+    // copies of the last data segments received in order, by seq num
+    private final TreeMap<Integer, TTPSegment> received = new TreeMap<>();
+    // segments past the next expected one, by seq num
+    private final TreeMap<Integer, Datagram> held = new TreeMap<>();
+
+    FecDecoder(SegmentPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Keep a copy of a data segment received in order, before it's queued for the application
+     *
+     * @param segment DATA, EOF or BATCH segment
+     */
+    void keep(TTPSegment segment) {
+        byte[] data = segment.getData();
+        TTPSegment copy = pool.segment();
+        copy.setType(segment.getType());
+        copy.setSeqNum(segment.getSeqNum());
+        copy.setStreamId(segment.getStreamId());
+        copy.setData(data.length == TTPSegment.MAX_DATA_SIZE && segment.getType() != TTPSegment.Type.BATCH
+                ? pool.fragment() : new byte[data.length]);
+        System.arraycopy(data, 0, copy.getData(), 0, data.length);
+
+        TTPSegment replaced = received.put(copy.getSeqNum(), copy);
+        if (replaced != null) pool.release(replaced);
+        // a group has at most MAX_GROUP_SIZE - 1 segments before the one missing
+        if (received.size() > FecEncoder.MAX_GROUP_SIZE) pool.release(received.pollFirstEntry().getValue());
+    }
+
+    /**
+     * Hold a segment that arrived past the next expected one, instead of dropping it
+     *
+     * @param datagram datagram
+     * @param expected seq num expected next
+     * @return whether it's held, otherwise the caller drops it
+     */
+    boolean hold(Datagram datagram, int expected) {
+        TTPSegment segment = (TTPSegment) datagram.getData();
+        int seqNum = segment.getSeqNum();
+        if (seqNum <= expected || seqNum >= expected + MAX_HELD
+                || !(FecEncoder.isProtected(segment.getType()) || segment.getType() == TTPSegment.Type.FEC)) {
+            return false;
+        }
+        // a retransmission of one held already
+        if (held.putIfAbsent(seqNum, datagram) != null) pool.release(datagram);
+        return true;
+    }
+
+    /**
+     * @param expected seq num expected next
+     * @return the held segment with the expected seq num, null if there's none. Those before it are dropped
+     */
+    Datagram poll(int expected) {
+        while (!held.isEmpty() && held.firstKey() < expected) {
+            pool.release(held.pollFirstEntry().getValue());
+        }
+        return held.remove(expected);
+    }
+
+    /**
+     * Rebuild the expected segment from a held parity whose group has every other segment
+     *
+     * @param expected seq num expected next, a hole
+     * @return datagram of the rebuilt segment, null if no parity can rebuild it
+     */
+    Datagram rebuild(int expected) {
+        for (Map.Entry<Integer, Datagram> entry : held.tailMap(expected, false).entrySet()) {
+            TTPSegment parity = (TTPSegment) entry.getValue().getData();
+            if (parity.getType() != TTPSegment.Type.FEC) continue;
+            int first = parity.getAckNum();
+            int end = parity.getSeqNum();
+            // groups are consecutive, a later parity can't cover it
+            if (first > expected) return null;
+            if (end <= expected || end - first > FecEncoder.MAX_GROUP_SIZE) continue;
+
+            TTPSegment segment = rebuild(parity, first, end, expected);
+            if (segment != null) {
+                Datagram datagram = pool.datagram();
+                datagram.setData(segment);
+                return datagram;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the segment XORed out of the parity and the other segments of the group,
+     * null if another one is missing too
+     */
+    private TTPSegment rebuild(TTPSegment parity, int first, int end, int missing) {
+        int length = parity.getSize();
+        int streamId = parity.getStreamId();
+        int type = parity.getWindow();
+        for (int seqNum = first; seqNum < end; seqNum++) {
+            if (seqNum == missing) continue;
+            TTPSegment other = other(seqNum, missing);
+            if (other == null) return null;
+            length ^= other.getData().length;
+            streamId ^= other.getStreamId();
+            type ^= other.getType().ordinal();
+        }
+        if (length < 0 || length > parity.getData().length || type < 0 || type >= TTPSegment.Type.values().length
+                || !FecEncoder.isProtected(TTPSegment.Type.values()[type])) {
+            return null;
+        }
+
+        byte[] data = new byte[parity.getData().length];
+        System.arraycopy(parity.getData(), 0, data, 0, data.length);
+        for (int seqNum = first; seqNum < end; seqNum++) {
+            if (seqNum != missing) FecEncoder.xor(data, other(seqNum, missing).getData());
+        }
+
+        TTPSegment segment = pool.segment();
+        segment.setType(TTPSegment.Type.values()[type]);
+        segment.setSeqNum(missing);
+        segment.setStreamId(streamId);
+        segment.setData(length == data.length ? data : Arrays.copyOf(data, length));
+        segment.setSize(length);
+        return segment;
+    }
+
+    /**
+     * @return a segment of the group other than the missing one, received before it or held past it
+     */
+    private TTPSegment other(int seqNum, int missing) {
+        if (seqNum < missing) return received.get(seqNum);
+        Datagram datagram = held.get(seqNum);
+        if (datagram == null) return null;
+        TTPSegment segment = (TTPSegment) datagram.getData();
+        return FecEncoder.isProtected(segment.getType()) ? segment : null;
+    }
+}
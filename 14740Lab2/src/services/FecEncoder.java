@@ -0,0 +1,102 @@
+package services;
+
+import datatypes.TTPSegment;
+
+import java.util.Arrays;
+
+/**
+ * XOR parity of a group of consecutive data segments of a connection, for forward error correction
+ * The group is closed by its groupSize-th DATA/EOF/BATCH segment, or early by the last segment of a message
+ * if it has more than one, and a FEC segment numbered right after it follows with
+ * - ackNum: seq num of the first segment of the group, the group is [ackNum, seqNum)
+ * - data: XOR of the data of the group, each padded with zeros to the longest
+ * - size, streamId, window: XOR of the data lengths, stream ids and type ordinals of the group
+ * A FIN or FIN_ACK numbered in between starts a new group, the segments before it go unprotected
+ * The peer's FecDecoder rebuilds any single segment of a group from the others and the parity
+ *
+ * Guarded by the send lock of the connection
+ */
+final class FecEncoder {
+
+    static final int MAX_GROUP_SIZE = 32;
+
+    private final int groupSize;
+    private final byte[] parity = new byte[TTPSegment.MAX_DATA_SIZE];
+    private int firstSeq;
+    private int count;
+    private int maxLength;
+    private int lengths;
+    private int streamIds;
+    private int types;
+
+    /**
+     * @param groupSize data segments per parity segment, 2 to MAX_GROUP_SIZE
+     */
+    FecEncoder(int groupSize) {
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * @param type segment type
+     * @return whether segments of the type are protected by parity
+     */
+    static boolean isProtected(TTPSegment.Type type) {
+        return type == TTPSegment.Type.DATA || type == TTPSegment.Type.EOF || type == TTPSegment.Type.BATCH;
+    }
+
+    /**
+     * XOR data into the parity, from its start
+     *
+     * @param parity parity
+     * @param data data, not longer than the parity
+     */
+    static void xor(byte[] parity, byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            parity[i] ^= data[i];
+        }
+    }
+
+    /**
+     * Add a segment to the group, before it's handed to the sender, afterwards it may be ACKed and reused
+     *
+     * @param segment DATA, EOF or BATCH segment, numbered
+     * @return whether the group is closed and its parity must follow right away
+     */
+    boolean add(TTPSegment segment) {
+        // something else was numbered since, the group isn't consecutive anymore
+        if (count > 0 && segment.getSeqNum() != firstSeq + count) clear();
+        if (count == 0) firstSeq = segment.getSeqNum();
+
+        byte[] data = segment.getData();
+        xor(parity, data);
+        maxLength = Math.max(maxLength, data.length);
+        lengths ^= data.length;
+        streamIds ^= segment.getStreamId();
+        types ^= segment.getType().ordinal();
+        count++;
+        return count == groupSize || (count > 1 && segment.getType() != TTPSegment.Type.DATA);
+    }
+
+    /**
+     * Fill in the parity segment of the group and start a new group
+     *
+     * @param segment FEC segment, numbered right after the group
+     */
+    void close(TTPSegment segment) {
+        segment.setAckNum(firstSeq);
+        segment.setData(Arrays.copyOf(parity, maxLength));
+        segment.setSize(lengths);
+        segment.setStreamId(streamIds);
+        segment.setWindow(types);
+        clear();
+    }
+
+    private void clear() {
+        Arrays.fill(parity, 0, maxLength, (byte) 0);
+        count = 0;
+        maxLength = 0;
+        lengths = 0;
+        streamIds = 0;
+        types = 0;
+    }
+}
@@ -0,0 +1,106 @@
+package services;
+
+import datatypes.TTPSegment;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small messages of one stream held back while the connection has data in flight, sent together
+ * as the data of a single BATCH segment: length (int) | message, for every message in order
+ * The receiver splits it back into one message per entry, so boundaries are kept
+ *
+ * Guarded by the send lock of the connection
+ */
+final class MessageBatch {
+
+    static final int LENGTH_SIZE = 4;
+
+    private final int streamId;
+    private final ByteBuffer data = ByteBuffer.allocate(TTPSegment.MAX_DATA_SIZE);
+    private int count;
+
+    MessageBatch(int streamId) {
+        this.streamId = streamId;
+    }
+
+    /**
+     * @param length message length
+     * @return whether a message of the length can ever go in a batch
+     */
+    static boolean isSmall(int length) {
+        return length + LENGTH_SIZE <= TTPSegment.MAX_DATA_SIZE;
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @param streamId stream of the message
+     * @param length message length
+     * @return whether the message can join this batch
+     */
+    boolean fits(int streamId, int length) {
+        return this.streamId == streamId && length + LENGTH_SIZE <= data.remaining();
+    }
+
+    /**
+     * Append a message, the remaining bytes of the buffers, which are used up
+     *
+     * @param buffers message content
+     * @param length total remaining bytes
+     */
+    void add(ByteBuffer[] buffers, int length) {
+        data.putInt(length);
+        for (ByteBuffer buffer : buffers) {
+            data.put(buffer);
+        }
+        count++;
+    }
+
+    /**
+     * @return the only message of the batch, sent as a plain EOF
+     */
+    byte[] first() {
+        byte[] message = new byte[data.getInt(0)];
+        System.arraycopy(data.array(), LENGTH_SIZE, message, 0, message.length);
+        return message;
+    }
+
+    /**
+     * @return data of the BATCH segment
+     */
+    byte[] toData() {
+        byte[] bytes = new byte[data.position()];
+        System.arraycopy(data.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Split the data of a received BATCH segment into its messages
+     *
+     * @param batch data of the segment
+     * @return messages in order, what's left after a malformed length is dropped
+     */
+    static List<byte[]> split(byte[] batch) {
+        List<byte[]> messages = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        while (buffer.remaining() >= LENGTH_SIZE) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                System.out.println("===> Malformed batch, " + length + " of " + buffer.remaining() + " bytes");
+                break;
+            }
+            byte[] message = new byte[length];
+            buffer.get(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+}
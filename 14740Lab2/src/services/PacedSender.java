@@ -0,0 +1,232 @@
+package services;
+
+import datatypes.Datagram;
+import datatypes.TTPSegment;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The only thread of a TTPService that writes to its DatagramService
+ *
+ * Application threads, the ReceiverThread and the timer hand their datagrams over instead of sending them:
+ * - control datagrams outside the window, i.e. ACKs, SYN_ACKs and keep-alives, go first, they're small
+ *   and a late ACK stalls the peer's whole window
+ * - datagrams of a connection's window are queued per connection, the connections with queued data
+ *   take turns by deficit round-robin, each turn sends up to a quantum of bytes, so a bulk transfer
+ *   can't hold back the segments of the others
+ * - a connection is paced at twice its window per smoothed RTT, a segment every RTT / (2 * window),
+ *   instead of putting its whole window on the wire in one burst. Unpaced until the first RTT sample
+ */
+final class PacedSender extends Thread {
+
+    // bytes a connection may send per round-robin turn, at least a whole segment
+    private static final int QUANTUM = TTPSegment.MAX_SEGMENT_SIZE;
+
+    private final DatagramService ds;
+    private final SegmentPool pool;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    // guarded by lock
+    private final ArrayDeque<Datagram> control = new ArrayDeque<>();
+    private final ArrayDeque<TTPConnection> active = new ArrayDeque<>();
+
+    volatile boolean stop = false;
+
+    // counted by this thread only
+    private volatile long controlSent;
+    private volatile long dataSent;
+    private volatile long stale;
+    private volatile long pacedWaits;
+
+    PacedSender(DatagramService ds, SegmentPool pool) {
+        super("ttp-sender");
+        this.ds = ds;
+        this.pool = pool;
+        // like the ReceiverThread, it never exits on its own
+        setDaemon(true);
+    }
+
+    /**
+     * Queue a datagram outside any window, it's given to the pool once it's sent
+     * @param datagram datagram
+     */
+    void sendControl(Datagram datagram) {
+        lock.lock();
+        try {
+            control.offer(datagram);
+            queued.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a datagram of the connection's window
+     *
+     * @param conn connection
+     * @param datagram datagram, already in the window
+     */
+    void sendData(TTPConnection conn, Datagram datagram) {
+        lock.lock();
+        try {
+            conn.sendQueue().offer(datagram);
+            schedule(conn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue the whole window of a connection again, replacing what's still queued of it,
+     * which is all in the window too
+     *
+     * @param conn connection
+     * @param window datagrams of the window, in sequence order
+     */
+    void resend(TTPConnection conn, Collection<Datagram> window) {
+        lock.lock();
+        try {
+            conn.sendQueue().clear();
+            conn.sendQueue().addAll(window);
+            if (!window.isEmpty()) schedule(conn);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule(TTPConnection conn) {
+        if (!conn.isScheduled) {
+            conn.isScheduled = true;
+            active.offer(conn);
+        }
+        queued.signal();
+    }
+
+    @Override
+    public void run() {
+        while (!(isInterrupted() || stop)) {
+            TTPConnection conn = null;
+            Datagram datagram;
+            lock.lock();
+            try {
+                datagram = control.poll();
+                if (datagram == null) {
+                    long now = System.nanoTime();
+                    long wait = Long.MAX_VALUE;
+                    boolean isShort = false;
+                    // deficit round-robin, the connection at the head has the turn
+                    for (int i = active.size(); i > 0 && datagram == null; i--) {
+                        TTPConnection head = active.peek();
+                        Datagram next = head.sendQueue().peek();
+                        if (next == null) {
+                            endTurn(head, false);
+                            continue;
+                        }
+                        long early = head.nextSendAt - now;
+                        if (early > 0) {
+                            wait = Math.min(wait, early);
+                            endTurn(head, true);
+                            continue;
+                        }
+                        if (!head.hasTurn) {
+                            head.hasTurn = true;
+                            head.deficit += QUANTUM;
+                        }
+                        if (next.getSize() > head.deficit) {
+                            // has its quantum for the next turn, which may come right away
+                            isShort = true;
+                            endTurn(head, true);
+                            continue;
+                        }
+                        datagram = head.sendQueue().poll();
+                        conn = head;
+                        conn.deficit -= next.getSize();
+                        conn.nextSendAt = now + conn.paceInterval();
+                        if (conn.sendQueue().isEmpty()) endTurn(conn, false);
+                    }
+
+                    if (datagram == null) {
+                        if (isShort) continue;
+                        if (wait == Long.MAX_VALUE) {
+                            queued.await();
+                        } else {
+                            pacedWaits++;
+                            queued.awaitNanos(wait);
+                        }
+                        continue;
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                transmit(conn, datagram);
+            } catch (IOException e) {
+                // a window segment is retransmitted by the timer, a lost ACK is repeated for the next segment
+                e.printStackTrace();
+            }
+        }
+        System.out.println("TTPService stops, sender stops");
+    }
+
+    /**
+     * @param conn connection at the head
+     * @param isBacklogged it still has data, goes to the end of the line and keeps its deficit
+     */
+    private void endTurn(TTPConnection conn, boolean isBacklogged) {
+        active.poll();
+        conn.hasTurn = false;
+        if (isBacklogged) {
+            active.offer(conn);
+        } else {
+            conn.deficit = 0;
+            conn.isScheduled = false;
+        }
+    }
+
+    /**
+     * @param conn connection of a window datagram, null for a control datagram
+     * @param datagram datagram
+     * @throws IOException
+     */
+    private void transmit(TTPConnection conn, Datagram datagram) throws IOException {
+        if (conn == null) {
+            try {
+                ds.sendDatagram(datagram);
+                controlSent++;
+            } finally {
+                pool.release(datagram);
+            }
+            return;
+        }
+
+        // ACKed meanwhile and maybe given to the pool already, the window lock keeps it from
+        // being released while it's serialized
+        synchronized (conn.windowLock()) {
+            TTPSegment segment = (TTPSegment) datagram.getData();
+            if (segment == null || !conn.isInWindow(segment.getSeqNum(), datagram)) {
+                stale++;
+                return;
+            }
+            conn.markTransmitted(segment.getSeqNum());
+            ds.sendDatagram(datagram);
+            dataSent++;
+        }
+    }
+
+    /**
+     * @return datagrams sent, window datagrams skipped because they were ACKed first, and waits for pacing
+     */
+    String report() {
+        return String.format("%d control, %d data sent, %d ACKed before sent, %d paced waits",
+                controlSent, dataSent, stale, pacedWaits);
+    }
+}
@@ -0,0 +1,104 @@
+package services;
+
+import datatypes.Datagram;
+import datatypes.TTPSegment;
+
+import java.util.ArrayDeque;
+
+/**
+ * Datagrams, TTPSegments and full size fragment arrays of a TTPService, reused instead of allocated per segment
+ *
+ * Objects come back explicitly: ACKs right after they're sent, data segments once they're ACKed and out of
+ * the window, received segments once their message is reassembled or the ACK is handled.
+ * Nothing may keep a reference to a released object. The pool is bounded, what doesn't fit is left to the GC
+ */
+final class SegmentPool {
+
+    private final int capacity;
+    private final ArrayDeque<Datagram> datagrams = new ArrayDeque<>();
+    private final ArrayDeque<TTPSegment> segments = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> fragments = new ArrayDeque<>();
+
+    private long allocated;
+    private long reused;
+
+    /**
+     * @param capacity max number of each kind of object kept
+     */
+    SegmentPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized Datagram datagram() {
+        Datagram datagram = datagrams.poll();
+        if (datagram == null) {
+            allocated++;
+            return new Datagram();
+        }
+        reused++;
+        return datagram;
+    }
+
+    /**
+     * @return segment with every field at its default
+     */
+    synchronized TTPSegment segment() {
+        TTPSegment segment = segments.poll();
+        if (segment == null) {
+            allocated++;
+            return new TTPSegment();
+        }
+        reused++;
+        segment.clear();
+        return segment;
+    }
+
+    /**
+     * @return array of TTPSegment.MAX_DATA_SIZE bytes, content undefined
+     */
+    synchronized byte[] fragment() {
+        byte[] fragment = fragments.poll();
+        if (fragment == null) {
+            allocated++;
+            return new byte[TTPSegment.MAX_DATA_SIZE];
+        }
+        reused++;
+        return fragment;
+    }
+
+    /**
+     * Give back a datagram with its segment, and its data if that's a full size fragment
+     * Data of other segment types may be an application's array, e.g. a fast open SYN, it's never reused
+     *
+     * @param datagram datagram, may have been received
+     */
+    synchronized void release(Datagram datagram) {
+        TTPSegment segment = (TTPSegment) datagram.getData();
+        datagram.setData(null);
+        if (datagrams.size() < capacity) datagrams.push(datagram);
+        if (segment != null) release(segment);
+    }
+
+    /**
+     * Give back a segment that isn't in a datagram, with its data as release(Datagram) does
+     *
+     * @param segment segment
+     */
+    synchronized void release(TTPSegment segment) {
+        byte[] data = segment.getData();
+        if (data != null && data.length == TTPSegment.MAX_DATA_SIZE && fragments.size() < capacity
+                && (segment.getType() == TTPSegment.Type.DATA || segment.getType() == TTPSegment.Type.EOF)) {
+            fragments.push(data);
+        }
+        segment.setData(null);
+        if (segments.size() < capacity) segments.push(segment);
+    }
+
+    /**
+     * @return objects allocated and reused
+     */
+    synchronized String report() {
+        return String.format("segment pool %d allocated, %d reused, %d/%d/%d pooled",
+                allocated, reused, datagrams.size(), segments.size(), fragments.size());
+    }
+}
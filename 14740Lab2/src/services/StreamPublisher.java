@@ -0,0 +1,140 @@
+package services;
+
+import datatypes.TTPSegment;
+
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+
+/**
+ * Received data of one stream as a Flow.Publisher, one ByteBuffer per segment as it arrives,
+ * message boundaries aren't kept
+ *
+ * Subscriber demand is the receive credit of the stream: the connection only accepts as many of its segments
+ * as have been requested and not delivered yet, and advertises the rest of the credit as its receive window.
+ * The sender stops at the window, one segment at a time probes a zero window, so a slow subscriber holds
+ * the sender back instead of having data buffered for it. Segments are in order on the wire,
+ * a stream out of credit holds the other streams of the connection back too
+ *
+ * onNext is called on the ReceiverThread, subscribers should hand heavy work to their own executor
+ */
+public class StreamPublisher implements Flow.Publisher<ByteBuffer> {
+
+    private final TTPService ttpService;
+    private final TTPConnection conn;
+    private final int streamId;
+    private final AtomicBoolean isSubscribed = new AtomicBoolean();
+
+    StreamPublisher(TTPService ttpService, TTPConnection conn, int streamId) {
+        this.ttpService = ttpService;
+        this.conn = conn;
+        this.streamId = streamId;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (!isSubscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("Stream " + streamId + " already has a subscriber"));
+            return;
+        }
+
+        Subscription subscription = new Subscription(subscriber);
+        conn.limitStream(streamId, subscription);
+        subscriber.onSubscribe(subscription);
+        conn.whenStateChanges(subscription);
+    }
+
+    /**
+     * Demand of the subscriber, also the delivery step run on every state change of the connection
+     */
+    private final class Subscription implements Flow.Subscription, BooleanSupplier, IntSupplier {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        // requested and not delivered, Long.MAX_VALUE for unbounded
+        private final AtomicLong demand = new AtomicLong();
+        private volatile boolean isCancelled;
+        // set instead of throwing from request, reported by the delivery step
+        private volatile Throwable failure;
+
+        Subscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("Non-positive request " + n);
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+
+            // tell a sender stopped at a zero window right away, instead of at its next probe
+            if (conn.getAdvertisedWindow() == 0 && getAsInt() > 0) ttpService.sendWindowUpdate(conn);
+            conn.signalStateChange();
+        }
+
+        @Override
+        public void cancel() {
+            isCancelled = true;
+            conn.unlimitStream(streamId);
+            conn.signalStateChange();
+        }
+
+        /**
+         * @return segments of the stream the connection can still accept
+         */
+        @Override
+        public int getAsInt() {
+            long credit = demand.get() - conn.queuedData(streamId);
+            return (int) Math.max(0, Math.min(credit, Integer.MAX_VALUE));
+        }
+
+        /**
+         * Deliver queued segments while there's demand, then complete once the stream can't get more data
+         * @return whether the subscription is over
+         */
+        @Override
+        public boolean getAsBoolean() {
+            if (isCancelled) return true;
+            if (failure != null) return finish(failure);
+
+            while (demand.get() > 0 && conn.hasData(streamId)) {
+                TTPSegment segment = (TTPSegment) conn.retrieveData(streamId).getData();
+                if (segment == null) continue;
+
+                if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                subscriber.onNext(ByteBuffer.wrap(segment.getData()).asReadOnlyBuffer());
+                if (isCancelled) return true;
+            }
+
+            if (conn.isAborted()) return finish(new SocketException("Connection dropped"));
+            // a FIN was sent or received, all the data is in
+            if (conn.getState() != TTPConnection.State.ESTABLISHED && !conn.hasData(streamId)) return finish(null);
+            return false;
+        }
+
+        private boolean finish(Throwable e) {
+            isCancelled = true;
+            conn.unlimitStream(streamId);
+            if (e != null) {
+                subscriber.onError(e);
+            } else {
+                subscriber.onComplete();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package services;
+
+import java.security.SecureRandom;
+
+/**
+ * Stateless SYN cookies
+ *
+ * The server's initial sequence number in SYN_ACK encodes the client address, port, client ISN
+ * and a coarse time bucket, keyed with a per-service secret. The ACK that completes the handshake
+ * echoes it back in ackNum, so nothing has to be stored for half-open handshakes
+ *
+ * The mix is keyed but not a cryptographic MAC, good enough to stop blind floods from allocating connections
+ */
+class SynCookies {
+
+    // a cookie is valid for the current and the previous period
+    private static final long PERIOD_MILLIS = 64 * 1000;
+    // cookie takes 28 bits above ISN, leaves plenty of room before the int sequence number wraps
+    private static final int VALUE_MASK = 0x0FFFFFFF;
+    // low 2 bits carry the time bucket
+    private static final int BUCKET_MASK = 0x3;
+    // a fast open token is valid for the current and the previous period
+    private static final long TOKEN_PERIOD_MILLIS = 24 * 3600 * 1000;
+
+    private final long secret0;
+    private final long secret1;
+
+    SynCookies() {
+        SecureRandom random = new SecureRandom();
+        secret0 = random.nextLong();
+        secret1 = random.nextLong();
+    }
+
+    /**
+     * Generate the server ISN for a SYN
+     *
+     * @param key client address and port
+     * @param clientSeq sequence number of the client's SYN
+     * @return cookie
+     */
+    int generate(AddressKey key, int clientSeq) {
+        return encode(key, clientSeq, currentBucket());
+    }
+
+    /**
+     * Check the ackNum of a handshake ACK
+     *
+     * @param key client address and port
+     * @param clientSeq sequence number of the client's SYN
+     * @param cookie ackNum of the ACK
+     * @return isValid
+     */
+    boolean validate(AddressKey key, int clientSeq, int cookie) {
+        int value = cookie - TTPConnection.ISN;
+        if (value < 0 || value > VALUE_MASK) return false;
+
+        long bucket = currentBucket();
+        for (long b = bucket; b >= bucket - 1; b--) {
+            if ((b & BUCKET_MASK) == (value & BUCKET_MASK) && encode(key, clientSeq, b) == cookie) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generate the fast open token of a client address
+     * A client that presents it on a later SYN has proven it receives at that address,
+     * so data on its SYN can be accepted before the handshake completes
+     * The token only depends on the address, a client uses a new port for every connection
+     *
+     * @param key client address and port
+     * @return token, never 0
+     */
+    int fastOpenToken(AddressKey key) {
+        return token(key, System.currentTimeMillis() / TOKEN_PERIOD_MILLIS);
+    }
+
+    /**
+     * Check the token of a fast open SYN
+     *
+     * @param key client address and port
+     * @param token token carried by the SYN, 0 for none
+     * @return isValid
+     */
+    boolean validateFastOpenToken(AddressKey key, int token) {
+        if (token == 0) return false;
+        long period = System.currentTimeMillis() / TOKEN_PERIOD_MILLIS;
+        return token == token(key, period) || token == token(key, period - 1);
+    }
+
+    private int token(AddressKey key, long period) {
+        long h = secret1;
+        h = mix(h ^ key.hi);
+        h = mix(h ^ key.lo);
+        h = mix(h ^ secret0 ^ ~period);
+
+        int token = (int) (h ^ (h >>> 32));
+        return token == 0 ? 1 : token;
+    }
+
+    private int encode(AddressKey key, int clientSeq, long bucket) {
+        long h = secret0;
+        h = mix(h ^ key.hi);
+        h = mix(h ^ key.lo);
+        h = mix(h ^ secret1 ^ (((long) key.port << 32) | (clientSeq & 0xFFFFFFFFL)));
+        h = mix(h ^ bucket);
+
+        int value = ((int) h & VALUE_MASK & ~BUCKET_MASK) | (int) (bucket & BUCKET_MASK);
+        return TTPConnection.ISN + value;
+    }
+
+    private static long currentBucket() {
+        return System.currentTimeMillis() / PERIOD_MILLIS;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+}
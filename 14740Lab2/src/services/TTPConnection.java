@@ -4,11 +4,20 @@ import datatypes.Datagram;
 import datatypes.TTPSegment;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
 
 /**
  * Simulate a TCP socket between 2 hosts
@@ -17,6 +26,8 @@ public class TTPConnection {
 
     // Initial Sequence Number
     public static final int ISN = 1024;
+    // Stream used by send/receive without a stream id
+    public static final int DEFAULT_STREAM = 0;
     // window size
     private int winSize;
     // retransmission timer interval
@@ -24,35 +35,88 @@ public class TTPConnection {
     // next sequence number to send
     private int nextSeq;
     // last acked segment - use when working as receiver
-    private int lastAcked;
+    private volatile int lastAcked;
 
     // address info of source and destination
     private String srcAddr;
     private short srcPort;
     private String dstAddr;
     private short dstPort;
+    // packed destination address and port, used to index the connection in TTPService
+    private AddressKey key;
+    // cached "address:port" of destination
+    private String tag;
+    // initial sequence numbers of the peer and of this end, to answer a retransmitted SYN
+    private int peerIsn;
+    private int isn = ISN;
 
     // a handle to TTPService the connection uses
     private TTPService ttpService;
 
-    // timer for oldest unacked packet
-    private Timer timer;
+    // timer for oldest unacked packet, scheduled on the TTPService's shared timer
+    private volatile ScheduledFuture<?> timer;
     // key: seq number, value: datagram
     private ConcurrentSkipListMap<Integer, Datagram> unacked;
-    // Queue which buffers the received DATA/EOF TTPSegment
-    private ConcurrentLinkedQueue<Datagram> dataQueue;
+    // held while a datagram of the window is sent or released to the pool
+    private final Object windowLock = new Object();
+    // datagrams of the window waiting for the PacedSender, guarded by its lock
+    private final ArrayDeque<Datagram> sendQueue = new ArrayDeque<>();
+    // round-robin turn and pacing of the PacedSender, guarded by its lock
+    boolean isScheduled;
+    boolean hasTurn;
+    int deficit;
+    long nextSendAt;
+    // smoothed RTT in nanoseconds, 0 before the first sample
+    private volatile long srtt;
+    // one segment at a time is timed, only when sent for the first time (Karn), timedAt is 0 if none is
+    private volatile int timedSeq;
+    private volatile long timedAt;
+    private volatile int highestSent;
+    // Queues which buffer the received DATA/EOF TTPSegment, one per stream
+    private ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Datagram>> dataQueues;
     // Queue which buffers the received SYN/SYN_ACK/FIN/FIN_ACK TTPSegment
     private ConcurrentLinkedQueue<Datagram> controlQueue;
 
     // ReceiverThread will update this field
-    // Which are used in spin lock to synchronize TTP flow
-    private boolean receivedSYN;
-    private boolean receivedFIN;
-    private boolean receivedSYNACK;
-    private boolean receivedFINACK;
+    // Which are used to synchronize TTP flow, see await()
+    private volatile boolean receivedSYNACK;
+    // teardown state, changed by close, the ReceiverThread and the timer
+    private volatile State state = State.ESTABLISHED;
+    // sequence number of the FIN_ACK this end sent, valid from LAST_ACK
+    private volatile int finAckSeq;
 
     // if the connection is closed, change to false
-    public boolean isActive;
+    public volatile boolean isActive;
+    // dropped without the FIN exchange, received data was discarded
+    private volatile boolean isAborted;
+    // receive window the peer advertised in its last ACK, the send window is capped by it
+    private volatile int peerWindow = Integer.MAX_VALUE;
+    // receive window this end advertised in its last ACK
+    private volatile int advertisedWindow = Integer.MAX_VALUE;
+    // streams whose data is only accepted on demand, key: stream, value: segments the stream can take
+    private final ConcurrentHashMap<Integer, IntSupplier> credits = new ConcurrentHashMap<>();
+    // send small messages right away instead of batching them while data is in flight
+    private volatile boolean noDelay = true;
+    // small messages held back, null if none, changed under the send lock
+    private volatile MessageBatch batch;
+    // parity of the segments sent, null if FEC is off, used under the send lock
+    private FecEncoder fecEncoder;
+    // segments the peer's parity may need, null until the first FEC segment, used by the ReceiverThread
+    private FecDecoder fecDecoder;
+    // System.nanoTime of the last intact segment from the peer, updated by the ReceiverThread
+    private volatile long lastReceived;
+
+    // application threads wait on this condition for the ReceiverThread to change connection state
+    // a j.u.c lock rather than a monitor, so a waiting virtual thread doesn't pin its carrier
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition stateChanged = stateLock.newCondition();
+    // held while a segment is numbered and put in the window, so segments of concurrent streams
+    // go out in sequence order. Fair, so the streams take turns segment by segment
+    private final ReentrantLock sendLock = new ReentrantLock(true);
+    // steps of asynchronous operations, run again on every state change until they're done
+    private final ConcurrentLinkedQueue<BooleanSupplier> continuations = new ConcurrentLinkedQueue<>();
+    // requested runs of the continuations, only the thread that takes it from 0 runs them
+    private final AtomicInteger continuationRuns = new AtomicInteger();
 
     public TTPConnection(int winSize, int timeout, TTPService ttpService) {
         this.winSize = winSize;
@@ -60,11 +124,13 @@ public class TTPConnection {
         this.ttpService = ttpService;
 
         unacked = new ConcurrentSkipListMap<>();
-        dataQueue = new ConcurrentLinkedQueue<>();
+        dataQueues = new ConcurrentHashMap<>();
         controlQueue = new ConcurrentLinkedQueue<>();
         nextSeq = ISN;
+        highestSent = nextSeq - 1;
         lastAcked = ISN - 1;
         isActive = true;
+        lastReceived = System.nanoTime();
     }
 
     /**
@@ -72,7 +138,31 @@ public class TTPConnection {
      * @return tag
      */
     public String getTag() {
-        return dstAddr + ":" +dstPort;
+        if (tag == null) tag = dstAddr + ":" + dstPort;
+        return tag;
+    }
+
+    /**
+     * Packed key of the destination address and port
+     * @return key
+     */
+    public AddressKey getKey() {
+        return key;
+    }
+
+    void setKey(AddressKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return System.nanoTime when the peer was last heard from
+     */
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    void markReceived() {
+        lastReceived = System.nanoTime();
     }
 
     /**
@@ -80,6 +170,100 @@ public class TTPConnection {
      */
     public void close(){
         isActive =false;
+        signalStateChange();
+    }
+
+    /**
+     * Drop the window and the control queue of a closed connection, nothing sends or reads them anymore
+     * Received data stays for publishers still draining it
+     */
+    void clearBuffers() {
+        unacked.clear();
+        controlQueue.clear();
+    }
+
+    /**
+     * The connection was dropped, discard the received data too
+     */
+    void abortData() {
+        isAborted = true;
+        dataQueues.clear();
+    }
+
+    boolean isAborted() {
+        return isAborted;
+    }
+
+    /**
+     * Block the calling thread until the condition holds
+     * The condition is re-evaluated every time the connection signals a state change
+     *
+     * @param condition condition on connection state
+     * @throws InterruptedIOException interrupted while waiting
+     */
+    void await(BooleanSupplier condition) throws InterruptedIOException {
+        if (condition.getAsBoolean()) return;
+
+        stateLock.lock();
+        try {
+            while (!condition.getAsBoolean()) {
+                stateChanged.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on " + getTag());
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the threads waiting in await(), called after the connection state is updated
+     */
+    void signalStateChange() {
+        stateLock.lock();
+        try {
+            stateChanged.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+        if (!continuations.isEmpty()) runContinuations();
+    }
+
+    /**
+     * Asynchronous counterpart of await: run a step of an operation now and after every state change,
+     * until it returns true. Steps run on the thread that changes the state, mostly the ReceiverThread,
+     * so they must never block
+     *
+     * @param step step of the operation, returns whether the operation is done
+     */
+    void whenStateChanges(BooleanSupplier step) {
+        continuations.add(step);
+        runContinuations();
+    }
+
+    /**
+     * Run the pending steps, a state change signalled while they run makes the running thread go over them again
+     * instead of running them concurrently or recursively
+     */
+    private void runContinuations() {
+        int runs = continuationRuns.incrementAndGet();
+        if (runs != 1) return;
+
+        do {
+            Iterator<BooleanSupplier> it = continuations.iterator();
+            while (it.hasNext()) {
+                boolean isDone;
+                try {
+                    isDone = it.next().getAsBoolean();
+                } catch (RuntimeException e) {
+                    // a broken step mustn't stall the others
+                    e.printStackTrace();
+                    isDone = true;
+                }
+                if (isDone) it.remove();
+            }
+        } while ((runs = continuationRuns.addAndGet(-runs)) != 0);
     }
 
     /**
@@ -88,8 +272,7 @@ public class TTPConnection {
      */
     public void startTimer() {
         System.out.println("  Start timer");
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
+        timer = ttpService.schedule(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -107,7 +290,8 @@ public class TTPConnection {
      */
     public void endTimer(){
         System.out.println("  End timer");
-        timer.cancel();
+        ScheduledFuture<?> current = timer;
+        if (current != null) current.cancel(false);
     }
 
     /**
@@ -115,14 +299,15 @@ public class TTPConnection {
      * resend all the unacked packet in the window
      */
     public void resend() throws IOException{
+        // aborted, nobody is going to ACK
+        if (!isActive) return;
         System.err.println("===> Timeout: Start to resent the segments in window...");
 
         endTimer();
         startTimer();
-        for(Map.Entry<Integer, Datagram> entry : unacked.entrySet()) {
-            Datagram datagram = entry.getValue();
-            ttpService.sentDatagram(this, datagram);
-        }
+        // the ACK of a timed segment that's resent can't tell which copy it's for
+        timedAt = 0;
+        ttpService.resendWindow(this, unacked.values());
     }
 
     /**
@@ -130,7 +315,8 @@ public class TTPConnection {
      * @return isWindowFull
      */
     public boolean isWindowFull() {
-        return unacked.size() == winSize;
+        // one segment may always be in flight, it probes a zero window until the peer opens it
+        return unacked.size() >= Math.min(winSize, Math.max(1, peerWindow));
     }
 
     /**
@@ -148,9 +334,67 @@ public class TTPConnection {
      */
     void moveWindowTo(int startSeq) {
         System.out.println("  Move window to "+startSeq);
-        while (!unacked.isEmpty() && unacked.firstKey() < startSeq) {
-            unacked.pollFirstEntry();
+        synchronized (windowLock) {
+            while (!unacked.isEmpty() && unacked.firstKey() < startSeq) {
+                ttpService.release(unacked.pollFirstEntry().getValue());
+            }
         }
+        // senders may be waiting for window space
+        signalStateChange();
+    }
+
+    /**
+     * @param seqNum sequence number
+     * @param datagram datagram
+     * @return whether the datagram is in the window, i.e. not ACKed yet
+     */
+    boolean isInWindow(int seqNum, Datagram datagram) {
+        return unacked.get(seqNum) == datagram;
+    }
+
+    /**
+     * The PacedSender put a segment of the window on the wire, time it if it's new and none is being timed
+     * @param seqNum sequence number
+     */
+    void markTransmitted(int seqNum) {
+        if (seqNum <= highestSent) return;
+        highestSent = seqNum;
+        if (timedAt == 0) {
+            timedSeq = seqNum;
+            timedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Take an RTT sample if the ACK covers the timed segment
+     * @param ackNum cumulative ACK
+     */
+    void sampleRtt(int ackNum) {
+        long sentAt = timedAt;
+        if (sentAt == 0 || ackNum < timedSeq) return;
+        long sample = System.nanoTime() - sentAt;
+        srtt = srtt == 0 ? sample : srtt + (sample - srtt) / 8;
+        timedAt = 0;
+    }
+
+    /**
+     * @return smoothed RTT in nanoseconds, 0 if there's no sample yet
+     */
+    public long getSrtt() {
+        return srtt;
+    }
+
+    /**
+     * Paced at twice the window per RTT, as Linux paces in slow start, which smooths the bursts
+     * without holding the connection below the rate its window allows
+     * @return nanoseconds between two segments, 0 for no pacing
+     */
+    long paceInterval() {
+        return srtt / (2L * Math.max(1, Math.min(winSize, peerWindow)));
+    }
+
+    ArrayDeque<Datagram> sendQueue() {
+        return sendQueue;
     }
 
     /**
@@ -180,17 +424,19 @@ public class TTPConnection {
     void addToQueue(Datagram datagram) {
 
         TTPSegment segment = (TTPSegment) datagram.getData();
+        // once queued, the application may reassemble it and give it to the pool
+        TTPSegment.Type type = segment.getType();
 
-        if (segment.getType() == TTPSegment.Type.ACK) {
+        if (type == TTPSegment.Type.ACK) {
             // do not enqueue
             return;
-        } else if (segment.getType() == TTPSegment.Type.DATA || segment.getType() == TTPSegment.Type.EOF) {
-            dataQueue.offer(datagram);
+        } else if (type == TTPSegment.Type.DATA || type == TTPSegment.Type.EOF) {
+            dataQueue(segment.getStreamId()).offer(datagram);
         } else {
             controlQueue.offer(datagram);
         }
 
-        System.out.println("  Add "+segment.getType().toString() +" segment to queue");
+        System.out.println("  Add "+type.toString() +" segment to queue");
     }
 
     /**
@@ -199,27 +445,37 @@ public class TTPConnection {
      * @param type TTPSegment type
      * @return Datagram that contains Segment of required type
      */
-    Datagram retrieve(TTPSegment.Type type) {
+    Datagram retrieve(TTPSegment.Type type) throws InterruptedIOException {
 
         System.out.println("  Retrieve "+type.toString() +" segment from queue");
 
         if (type == TTPSegment.Type.ACK) {
             return null;
         } else if (type == TTPSegment.Type.DATA || type == TTPSegment.Type.EOF) {
-            return dataQueue.poll();
+            return dataQueue(DEFAULT_STREAM).poll();
         } else {
-            while (controlQueue.isEmpty() || ((TTPSegment)controlQueue.peek().getData()).getType() != type);
+            await(() -> hasControl(type));
             return controlQueue.poll();
         }
     }
 
     /**
-     * Retrieve a DATA packet from queue
+     * @param type SYN/SYN_ACK/FIN/FIN_ACK
+     * @return whether the next control segment in queue is of the type
+     */
+    boolean hasControl(TTPSegment.Type type) {
+        Datagram head = controlQueue.peek();
+        return head != null && ((TTPSegment) head.getData()).getType() == type;
+    }
+
+    /**
+     * Retrieve a DATA packet of a stream from queue
+     * @param streamId stream
      * @return Datagram that contains a DATA TTPSegment
      */
-    Datagram retrieveData() {
+    Datagram retrieveData(int streamId) {
 
-        Datagram datagram = dataQueue.poll();
+        Datagram datagram = dataQueue(streamId).poll();
         TTPSegment segment = (TTPSegment) datagram.getData();
         System.out.println("  Retrieve "+segment.getType().toString() +" segment from queue");
         return datagram;
@@ -237,6 +493,15 @@ public class TTPConnection {
         return nextSeq++;
     }
 
+    int peekNextSeq() {
+        return nextSeq;
+    }
+
+    void setNextSeq(int nextSeq) {
+        this.nextSeq = nextSeq;
+        this.highestSent = nextSeq - 1;
+    }
+
     public String getSrcAddr() {
         return srcAddr;
     }
@@ -259,6 +524,7 @@ public class TTPConnection {
 
     public void setDstAddr(String dstAddr) {
         this.dstAddr = dstAddr;
+        this.tag = null;
     }
 
     public short getDstPort() {
@@ -267,36 +533,194 @@ public class TTPConnection {
 
     public void setDstPort(short dstPort) {
         this.dstPort = dstPort;
+        this.tag = null;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+        signalStateChange();
+    }
+
+    int getFinAckSeq() {
+        return finAckSeq;
+    }
+
+    void setFinAckSeq(int finAckSeq) {
+        this.finAckSeq = finAckSeq;
+    }
+
+    boolean hasData(int streamId) {
+        return !dataQueue(streamId).isEmpty();
+    }
+
+    /**
+     * @return received segments waiting to be read, over all the streams
+     */
+    public int queuedSegments() {
+        int queued = 0;
+        for (ConcurrentLinkedQueue<Datagram> queue : dataQueues.values()) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    int queuedData(int streamId) {
+        return dataQueue(streamId).size();
+    }
+
+    /**
+     * Received data of a stream as a Flow.Publisher, see StreamPublisher
+     *
+     * @param streamId stream
+     * @return publisher, takes a single subscriber
+     */
+    public Flow.Publisher<ByteBuffer> publisher(int streamId) {
+        return new StreamPublisher(ttpService, this, streamId);
+    }
+
+    /**
+     * Only accept data of the stream while it has credit
+     *
+     * @param streamId stream
+     * @param credit segments the stream can take
+     */
+    void limitStream(int streamId, IntSupplier credit) {
+        credits.put(streamId, credit);
+    }
+
+    void unlimitStream(int streamId) {
+        credits.remove(streamId);
+    }
+
+    /**
+     * @param streamId stream of an in order DATA/EOF segment
+     * @return whether the segment can be queued, otherwise it's dropped and the peer retransmits it
+     */
+    boolean canAccept(int streamId) {
+        IntSupplier credit = credits.get(streamId);
+        return credit == null || credit.getAsInt() > 0;
+    }
+
+    /**
+     * Receive window to advertise, the segments stay in order on the wire,
+     * so it's the credit of the most limited stream
+     *
+     * @return segments this end can take
+     */
+    int receiveWindow() {
+        int window = Integer.MAX_VALUE;
+        for (IntSupplier credit : credits.values()) {
+            window = Math.min(window, credit.getAsInt());
+        }
+        return window;
+    }
+
+    int getPeerWindow() {
+        return peerWindow;
+    }
+
+    void setPeerWindow(int peerWindow) {
+        this.peerWindow = peerWindow;
+    }
+
+    int getAdvertisedWindow() {
+        return advertisedWindow;
+    }
+
+    void setAdvertisedWindow(int advertisedWindow) {
+        this.advertisedWindow = advertisedWindow;
     }
 
-    synchronized boolean isReceivedFINACK() {
-        return receivedFINACK;
+    private ConcurrentLinkedQueue<Datagram> dataQueue(int streamId) {
+        ConcurrentLinkedQueue<Datagram> queue = dataQueues.get(streamId);
+        return queue != null ? queue : dataQueues.computeIfAbsent(streamId, id -> new ConcurrentLinkedQueue<>());
     }
 
-    synchronized void setReceivedFINACK(boolean receivedFINACK) {
-        this.receivedFINACK = receivedFINACK;
+    ReentrantLock sendLock() {
+        return sendLock;
     }
 
-    boolean hasData() {
-        return !dataQueue.isEmpty();
+    Object windowLock() {
+        return windowLock;
     }
 
-    synchronized boolean isReceivedSYN() {
-        return receivedSYN;
+    public boolean isNoDelay() {
+        return noDelay;
     }
 
-    synchronized void setReceivedSYN(boolean receivedSYN) {
-        this.receivedSYN = receivedSYN;
+    /**
+     * @param noDelay send every message right away, for latency sensitive traffic,
+     *                otherwise small messages are batched while data is in flight
+     */
+    public void setNoDelay(boolean noDelay) {
+        this.noDelay = noDelay;
     }
 
+    MessageBatch getBatch() {
+        return batch;
+    }
+
+    void setBatch(MessageBatch batch) {
+        this.batch = batch;
+    }
 
-    synchronized boolean isReceivedSYNACK() {
+    FecEncoder getFecEncoder() {
+        return fecEncoder;
+    }
+
+    void setFecEncoder(FecEncoder fecEncoder) {
+        this.fecEncoder = fecEncoder;
+    }
+
+    FecDecoder getFecDecoder() {
+        return fecDecoder;
+    }
+
+    void setFecDecoder(FecDecoder fecDecoder) {
+        this.fecDecoder = fecDecoder;
+    }
+
+    int getPeerIsn() {
+        return peerIsn;
+    }
+
+    int getIsn() {
+        return isn;
+    }
+
+    void setIsn(int peerIsn, int isn) {
+        this.peerIsn = peerIsn;
+        this.isn = isn;
+    }
+
+
+    boolean isReceivedSYNACK() {
         return receivedSYNACK;
     }
 
-    synchronized void setReceivedSYNACK(boolean receivedSYNACK) {
+    void setReceivedSYNACK(boolean receivedSYNACK) {
         this.receivedSYNACK = receivedSYNACK;
     }
 
-
+    /**
+     * Teardown states, the side that calls close goes FIN_WAIT, TIME_WAIT, CLOSED,
+     * the other side CLOSE_WAIT, LAST_ACK, CLOSED
+     */
+    public enum State {
+        ESTABLISHED,
+        // FIN sent, waiting for the FIN_ACK
+        FIN_WAIT,
+        // FIN_ACK received and ACKed, kept in the table for a while to ACK it again if our ACK is lost
+        TIME_WAIT,
+        // FIN received, the FIN_ACK waits for room in the window
+        CLOSE_WAIT,
+        // FIN_ACK sent, waiting for its ACK
+        LAST_ACK,
+        // removed from the service
+        CLOSED
+    }
 }
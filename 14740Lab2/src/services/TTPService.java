@@ -4,16 +4,45 @@ import datatypes.Datagram;
 import datatypes.TTPSegment;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collection;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
 /**
  * Implementation of trusted transportation protocol over UDP
  */
 public class TTPService {
+    // retransmission intervals a closed connection lingers in TIME_WAIT
+    private static final int TIME_WAIT_TIMEOUTS = 4;
+    // retransmission intervals before LAST_ACK gives up on the ACK of its FIN_ACK
+    private static final int LAST_ACK_TIMEOUTS = 16;
+    // datagrams and segments kept by the pool, of each kind
+    private static final int POOL_CAPACITY = 1024;
+
+    // a datagram past the receive buffer of DatagramService is cut, and retransmitted forever
+    static {
+        int size = DataUtil.maxDatagramSize();
+        if (size > TTPSegment.MAX_DATAGRAM_SIZE) {
+            throw new IllegalStateException("TTPSegment.HEADER_SIZE too small, a full segment takes "
+                    + size + " bytes, datagrams take " + TTPSegment.MAX_DATAGRAM_SIZE);
+        }
+    }
     // retransmission timer interval
     private int timeout;
     // unacked packet window size
@@ -21,9 +50,38 @@ public class TTPService {
     // underline facility for data transmission
     private DatagramService ds;
     // table of all the established connection through this TTPService instance
-    private Hashtable<String, TTPConnection> connections;
-    // table of all the pending connection (not accepted)
-    private Hashtable<String, TTPConnection> pendingConnection;
+    private ConnectionTable connections;
+    // connections that completed the handshake but haven't been accepted, null if not listening
+    private volatile BlockingQueue<TTPConnection> acceptQueue;
+    // acceptAsync futures waiting for a connection, guarded by itself
+    private final ArrayDeque<CompletableFuture<TTPConnection>> acceptWaiters = new ArrayDeque<>();
+    // stateless cookies for half-open handshakes
+    private SynCookies cookies;
+    // fast open tokens given by servers, key: "address:port" of the server
+    private final ConcurrentHashMap<String, Integer> fastOpenTokens = new ConcurrentHashMap<>();
+    // retransmission timer shared by all the connections, instead of a timer thread per connection
+    private ScheduledThreadPoolExecutor timer;
+    // periodic task that frees connections whose peer went silent, null if disabled
+    private ScheduledFuture<?> reaper;
+    // reaper settings
+    private volatile long keepAliveNanos;
+    private volatile long idleTimeoutNanos;
+    // new connections batch small messages, see setCoalescing
+    private volatile boolean isCoalescing;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batchedMessages = new AtomicLong();
+    // data segments per parity segment on new connections, 0 for no FEC, see setFec
+    private volatile int fecGroupSize;
+    private final AtomicLong paritySent = new AtomicLong();
+    private final AtomicLong rebuilt = new AtomicLong();
+    private final AtomicLong resends = new AtomicLong();
+    private final AtomicLong resentSegments = new AtomicLong();
+    private final AtomicLong keepAlives = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+    // reused datagrams, segments and fragments, shared by all the connections
+    private final SegmentPool pool = new SegmentPool(POOL_CAPACITY);
+    // the only thread that sends through ds, see PacedSender
+    private PacedSender sender;
     // receiver thread that keep running in the background, fetching data from DatagramService
     // and distributed to different connections
     private TTPService.ReceiverThread receiver;
@@ -31,81 +89,292 @@ public class TTPService {
     public TTPService(int winSize, int timeout, int port) throws SocketException{
         this.timeout = timeout;
         this.winSize = winSize;
-        this.connections = new Hashtable<>();
-        this.pendingConnection = new Hashtable<>();
+        this.connections = new ConnectionTable();
+        this.cookies = new SynCookies();
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ttp-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
         this.receiver = new ReceiverThread();
+        // the socket can't be closed, so the receiver never exits on its own, don't let it keep the JVM alive
+        this.receiver.setDaemon(true);
         this.ds = new DatagramService(port, 10);
+        this.sender = new PacedSender(ds, pool);
 
-        // launch receiver thread
+        // launch receiver and sender threads
         this.receiver.start();
+        this.sender.start();
+    }
+
+    /**
+     * Run a task on the timer shared by the connections of this service
+     * After shutdown the timer takes nothing, the task is dropped
+     *
+     * @param task task
+     * @param delay delay in milliseconds
+     * @return scheduled task, null if the service is shut down
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay) {
+        if (timer.isShutdown()) return null;
+        try {
+            return timer.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile
+            return null;
+        }
     }
 
     /**
      * Put the new connection to table, which will be used for packet mapping in ReceiverThread
      *
-     * @param tag  address:port
+     * @param key  packed destination address and port
      * @param conn connection
      */
-    private void addConnection(String tag, TTPConnection conn) {
-        connections.put(tag, conn);
+    private void addConnection(AddressKey key, TTPConnection conn) {
+        connections.put(key, conn);
     }
 
     /**
-     * When ReceiverThread receives a SYN segment, there isn't a connection built up at server side yet
-     * So initiate a connection object and put it the pending table.
-     * Server's accept method will pick up connection request from this table
+     * Start accepting connections, SYNs that arrive before this are ignored
+     * Handshakes are answered statelessly with SYN cookies, a TTPConnection is only created once
+     * the client ACKs the cookie, and then it waits in a bounded accept queue
+     *
+     * @param backlog max number of established connections waiting to be accepted
+     */
+    public void listen(int backlog) {
+        if (backlog <= 0) throw new IllegalArgumentException("backlog must be positive: " + backlog);
+        if (acceptQueue == null) acceptQueue = new ArrayBlockingQueue<>(backlog);
+    }
+
+    /**
+     * Accept a connection from client side, block until any client completes a handshake
      *
-     * @param srcAddr source address
-     * @param srcPort source port
-     * @param dstAddr destination address
-     * @param dstPort destination port
      * @return connection
+     * @throws InterruptedException
      */
-    private TTPConnection addPendingConnection(String srcAddr, short srcPort,
-                                     String dstAddr, short dstPort) {
-        TTPConnection conn = new TTPConnection(winSize, timeout, this);
-        conn.setSrcAddr(srcAddr);
-        conn.setSrcPort(srcPort);
-        conn.setDstAddr(dstAddr);
-        conn.setDstPort(dstPort);
+    public TTPConnection accept() throws InterruptedException {
+        BlockingQueue<TTPConnection> queue = acceptQueue;
+        if (queue == null) throw new IllegalStateException("TTPService is not listening");
 
-        pendingConnection.put(conn.getSrcAddr()+":"+conn.getSrcPort(), conn);
+        TTPConnection conn = queue.take();
+        System.out.println("== Connection established ==");
         return conn;
     }
 
     /**
-     * Accept a connection from client side
+     * Non-blocking accept, the future completes with the next connection that completes a handshake,
+     * on the ReceiverThread unless one is already waiting
      *
      * @return connection
-     * @throws IOException
-     * @throws ClassNotFoundException
      */
-    public TTPConnection accept(String srcAddr, short srcPort) throws IOException, ClassNotFoundException{
+    public CompletableFuture<TTPConnection> acceptAsync() {
+        if (acceptQueue == null) throw new IllegalStateException("TTPService is not listening");
 
-        String key = srcAddr + ":" + srcPort;
-        while(!pendingConnection.containsKey(key));
+        CompletableFuture<TTPConnection> future = new CompletableFuture<>();
+        synchronized (acceptWaiters) {
+            acceptWaiters.add(future);
+        }
+        dispatchAccepts();
+        return future;
+    }
 
-        TTPConnection conn = pendingConnection.get(key);
-        pendingConnection.remove(key);
-        addConnection(conn.getTag(), conn);
+    /**
+     * Put an established connection in the accept queue and hand it to a waiting acceptAsync if there's one
+     *
+     * @param queue accept queue
+     * @param conn connection
+     * @return false if the backlog is full
+     */
+    private boolean enqueueAccept(BlockingQueue<TTPConnection> queue, TTPConnection conn) {
+        if (!queue.offer(conn)) return false;
+        dispatchAccepts();
+        return true;
+    }
 
-        // loop to wait for syn
-        while(!conn.isReceivedSYN());
-        Datagram datagram = conn.retrieve(TTPSegment.Type.SYN);
-        conn.setReceivedSYN(false);
-        TTPSegment segment = (TTPSegment) datagram.getData();
+    /**
+     * Pair queued connections with waiting acceptAsync futures, futures are completed outside the lock
+     */
+    private void dispatchAccepts() {
+        BlockingQueue<TTPConnection> queue = acceptQueue;
+        List<CompletableFuture<TTPConnection>> futures = new ArrayList<>();
+        List<TTPConnection> conns = new ArrayList<>();
+        synchronized (acceptWaiters) {
+            while (!acceptWaiters.isEmpty()) {
+                // cancelled by the application
+                if (acceptWaiters.peek().isDone()) {
+                    acceptWaiters.poll();
+                    continue;
+                }
+                TTPConnection conn = queue.poll();
+                if (conn == null) break;
+                futures.add(acceptWaiters.poll());
+                conns.add(conn);
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            System.out.println("== Connection established ==");
+            // cancelled meanwhile, leave the connection for the next accept
+            if (!futures.get(i).complete(conns.get(i))) acceptQueue.offer(conns.get(i));
+        }
+    }
 
-        TTPSegment synack = packSegment(conn, TTPSegment.Type.SYN_ACK, segment.getSeqNum(), null);
-        sendSegment(conn, synack);
-        conn.setLastAcked(segment.getSeqNum());
+    /**
+     * ReceiverThread got a segment that doesn't belong to any connection,
+     * the only thing it can be is part of a handshake to a listening service
+     *
+     * SYN:  reply a SYN_ACK whose sequence number is a cookie, remember nothing
+     *       unless it carries data and a valid fast open token, then the connection is created right away
+     *       and the data is delivered with it. The SYN_ACK always gives the client a fresh token
+     * ACK:  validate the cookie, create the connection and put it in the accept queue
+     * DATA/EOF: the client's first segment carries the cookie too, completes the handshake if the ACK was lost
+     *
+     * @param datagram datagram
+     * @param segment segment
+     * @param key client address and port
+     * @return connection established by a data segment, which still has to be delivered, otherwise null
+     * @throws IOException
+     */
+    private TTPConnection handleHandshake(Datagram datagram, TTPSegment segment, AddressKey key) throws IOException {
+        BlockingQueue<TTPConnection> queue = acceptQueue;
+        if (queue == null) {
+            System.out.println("Connection not found or stopped");
+            return null;
+        }
 
-        // wait to receive ACK of SYN_ACK
-        while (conn.hasUnacked() && conn.firstUnacked() <= synack.getSeqNum())
+        switch (segment.getType()) {
+            case SYN:
+                // backlog is full, drop it and let the client retransmit
+                if (queue.remainingCapacity() == 0) {
+                    System.out.println("===> Backlog full, drop SYN");
+                    return null;
+                }
+                int cookie = cookies.generate(key, segment.getSeqNum());
+                boolean isFastOpen = segment.getData() != null
+                        && cookies.validateFastOpenToken(key, segment.getAckNum());
+                if (isFastOpen) {
+                    TTPConnection conn = establish(datagram, key, segment.getSeqNum(), cookie);
+
+                    // the data of the SYN is the first message of the connection
+                    TTPSegment first = new TTPSegment();
+                    first.setType(TTPSegment.Type.EOF);
+                    first.setSeqNum(segment.getSeqNum());
+                    first.setData(segment.getData());
+                    first.setSize(segment.getData().length);
+                    Datagram message = new Datagram();
+                    message.setData(first);
+                    conn.addToQueue(message);
+
+                    if (!enqueueAccept(queue, conn)) {
+                        connections.remove(conn.getKey());
+                        return null;
+                    }
+                    System.out.println("  Fast open from " + conn.getTag());
+                }
+                sendSynAck(datagram, segment.getSeqNum(), cookie, fastOpenReply(key, isFastOpen));
+                return null;
+            case ACK:
+            case DATA:
+            case EOF:
+                // ACK doesn't consume a sequence number, it and the first data segment
+                // carry the one right after the client's SYN
+                if (!cookies.validate(key, segment.getSeqNum() - 1, segment.getAckNum())) {
+                    System.out.println("===> Invalid SYN cookie, drop " + segment.getType());
+                    return null;
+                }
+                if (queue.remainingCapacity() == 0) {
+                    System.out.println("===> Backlog full, drop " + segment.getType());
+                    return null;
+                }
 
-        System.out.println("== Connection established ==");
+                TTPConnection conn = establish(datagram, key, segment.getSeqNum() - 1, segment.getAckNum());
+                if (!enqueueAccept(queue, conn)) {
+                    connections.remove(conn.getKey());
+                    return null;
+                }
+                return segment.getType() == TTPSegment.Type.ACK ? null : conn;
+            default:
+                System.out.println("Connection not found or stopped");
+                return null;
+        }
+    }
+
+    /**
+     * Create a server side connection whose handshake is complete and add it to the table
+     *
+     * @param datagram datagram from the client
+     * @param key client address and port
+     * @param clientIsn sequence number of the client's SYN
+     * @param isn server ISN, the cookie
+     * @return connection
+     */
+    private TTPConnection establish(Datagram datagram, AddressKey key, int clientIsn, int isn) {
+        TTPConnection conn = new TTPConnection(winSize, timeout, this);
+        conn.setSrcAddr(datagram.getDstaddr());
+        conn.setSrcPort(datagram.getDstport());
+        conn.setDstAddr(datagram.getSrcaddr());
+        conn.setDstPort(datagram.getSrcport());
+        conn.setKey(key.copy());
+        conn.setIsn(clientIsn, isn);
+        conn.setNextSeq(isn + 1);
+        conn.setLastAcked(clientIsn);
+        conn.setNoDelay(!isCoalescing);
+        if (fecGroupSize > 0) conn.setFecEncoder(new FecEncoder(fecGroupSize));
+
+        addConnection(conn.getKey(), conn);
         return conn;
     }
 
+    /**
+     * SYN_ACK data: fast open token for the client (int) | whether the data of the SYN was accepted (byte)
+     *
+     * @param key client address and port
+     * @param isAccepted data of the SYN was delivered
+     * @return SYN_ACK data
+     */
+    private byte[] fastOpenReply(AddressKey key, boolean isAccepted) {
+        ByteBuffer reply = ByteBuffer.allocate(5);
+        reply.putInt(cookies.fastOpenToken(key));
+        reply.put((byte) (isAccepted ? 1 : 0));
+        return reply.array();
+    }
+
+    /**
+     * Reply a SYN with a SYN_ACK that carries the cookie as sequence number
+     * No connection involved, so it doesn't go to any window, a lost SYN_ACK is recovered by the client resending SYN
+     *
+     * @param syn datagram that contains the SYN
+     * @param synSeq sequence number of the SYN
+     * @param cookie server ISN
+     * @param data fast open reply
+     * @throws IOException
+     */
+    private void sendSynAck(Datagram syn, int synSeq, int cookie, byte[] data) throws IOException {
+        TTPSegment synack = new TTPSegment();
+        synack.setType(TTPSegment.Type.SYN_ACK);
+        synack.setSeqNum(cookie);
+        synack.setAckNum(synSeq);
+        synack.setData(data);
+        synack.setSize(data.length);
+
+        Datagram datagram = new Datagram();
+        datagram.setData(synack);
+        datagram.setSrcaddr(syn.getDstaddr());
+        datagram.setDstaddr(syn.getSrcaddr());
+        datagram.setDstport(syn.getSrcport());
+        datagram.setSrcport(syn.getDstport());
+        datagram.setSize((short) DataUtil.serializedSize(synack));
+        datagram.setChecksum((short) 0);
+        datagram.setChecksum(DataUtil.getSerializedCheckSum(datagram));
+
+        sender.sendControl(datagram);
+        System.out.println("Send Segment: " + cookie + " " + TTPSegment.Type.SYN_ACK.toString());
+    }
+
     /**
      * Send connect request to a server
      *
@@ -120,28 +389,194 @@ public class TTPService {
     public TTPConnection connect(String srcAddr, short srcPort,
                                  String dstAddr, short dstPort)
                                 throws IOException, ClassNotFoundException{
+        return connect(srcAddr, srcPort, dstAddr, dstPort, null);
+    }
+
+    /**
+     * Connect to a server and send the first message of the connection
+     * With a fast open token from an earlier connection to the server and a message that fits in one segment,
+     * the message rides on the SYN and the server application gets it as soon as it accepts,
+     * one round trip earlier. Otherwise, or if the server rejects the token, it's sent right after the handshake
+     *
+     * @param srcAddr source address
+     * @param srcPort source port
+     * @param dstAddr destination address
+     * @param dstPort destination port
+     * @param firstMessage first message to send, may be null
+     * @return connection
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public TTPConnection connect(String srcAddr, short srcPort,
+                                 String dstAddr, short dstPort, byte[] firstMessage)
+                                throws IOException, ClassNotFoundException{
+
+        TTPConnection conn = openConnection(srcAddr, srcPort, dstAddr, dstPort);
+        boolean isFastOpen = sendSyn(conn, firstMessage);
+
+        // wait for SYNACK
+        conn.await(() -> isHandshakeDone(conn));
+        boolean isAccepted = readSynAck(conn);
+
+        System.out.println("== Connection established" + (isFastOpen && isAccepted ? " with fast open" : "") + " ==");
+        if (firstMessage != null && !(isFastOpen && isAccepted)) {
+            send(conn, firstMessage);
+        }
+        return conn;
+    }
+
+    /**
+     * Non-blocking connect, the handshake is carried on by the ReceiverThread
+     * The future completes on the ReceiverThread, dependent actions that may block should use the *Async
+     * methods of CompletableFuture
+     *
+     * @param srcAddr source address
+     * @param srcPort source port
+     * @param dstAddr destination address
+     * @param dstPort destination port
+     * @param firstMessage first message to send, may be null
+     * @return connection, once the handshake is done and the first message is in the window
+     */
+    public CompletableFuture<TTPConnection> connectAsync(String srcAddr, short srcPort,
+                                                         String dstAddr, short dstPort, final byte[] firstMessage) {
+        final CompletableFuture<TTPConnection> future = new CompletableFuture<>();
+        final TTPConnection conn;
+        final boolean isFastOpen;
+        try {
+            conn = openConnection(srcAddr, srcPort, dstAddr, dstPort);
+            isFastOpen = sendSyn(conn, firstMessage);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        conn.whenStateChanges(() -> {
+            if (!isHandshakeDone(conn)) return false;
+            boolean isAccepted;
+            try {
+                isAccepted = readSynAck(conn);
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                return true;
+            }
+
+            System.out.println("== Connection established" + (isFastOpen && isAccepted ? " with fast open" : "") + " ==");
+            if (firstMessage != null && !(isFastOpen && isAccepted)) {
+                sendAsync(conn, TTPConnection.DEFAULT_STREAM, ByteBuffer.wrap(firstMessage))
+                        .whenComplete((sent, e) -> {
+                            if (e != null) {
+                                future.completeExceptionally(e);
+                            } else {
+                                future.complete(conn);
+                            }
+                        });
+            } else {
+                future.complete(conn);
+            }
+            return true;
+        });
+        return future;
+    }
 
+    /**
+     * Create a client side connection and add it to the table
+     *
+     * @param srcAddr source address
+     * @param srcPort source port
+     * @param dstAddr destination address
+     * @param dstPort destination port
+     * @return connection
+     * @throws IOException unknown destination address
+     * @throws IllegalArgumentException address longer than TTPSegment.MAX_ADDRESS_LENGTH
+     */
+    private TTPConnection openConnection(String srcAddr, short srcPort, String dstAddr, short dstPort)
+            throws IOException {
+        // a longer address would push full segments past the datagram size
+        if (srcAddr.length() > TTPSegment.MAX_ADDRESS_LENGTH || dstAddr.length() > TTPSegment.MAX_ADDRESS_LENGTH) {
+            throw new IllegalArgumentException("address longer than " + TTPSegment.MAX_ADDRESS_LENGTH
+                    + " characters: " + (srcAddr.length() > dstAddr.length() ? srcAddr : dstAddr));
+        }
         TTPConnection conn = new TTPConnection(winSize,timeout,this);
         conn.setSrcAddr(srcAddr);
         conn.setSrcPort(srcPort);
         conn.setDstAddr(dstAddr);
         conn.setDstPort(dstPort);
+        conn.setKey(new AddressKey(dstAddr, dstPort));
+        conn.setNoDelay(!isCoalescing);
+        if (fecGroupSize > 0) conn.setFecEncoder(new FecEncoder(fecGroupSize));
 
-        addConnection(conn.getTag(), conn);
+        addConnection(conn.getKey(), conn);
+        return conn;
+    }
+
+    /**
+     * Send the SYN, with the first message on it if the server gave a fast open token
+     *
+     * @param conn connection
+     * @param firstMessage first message, may be null
+     * @return whether the message is on the SYN
+     * @throws IOException
+     */
+    private boolean sendSyn(TTPConnection conn, byte[] firstMessage) throws IOException {
+        Integer token = getFastOpenToken(conn.getDstAddr(), conn.getDstPort());
+        boolean isFastOpen = token != null && firstMessage != null
+                && firstMessage.length <= TTPSegment.MAX_DATA_SIZE;
 
-        TTPSegment segment = packSegment(conn, TTPSegment.Type.SYN, 0, null);
+        TTPSegment segment = packSegment(conn, TTPSegment.Type.SYN, 0, isFastOpen ? firstMessage : null);
+        if (isFastOpen) segment.setAckNum(token);
         sendSegment(conn, segment);
+        return isFastOpen;
+    }
 
-        // wait for SYNACK
-        while (!conn.isReceivedSYNACK());
+    /**
+     * @param conn client side connection
+     * @return whether the SYN_ACK arrived, has been ACKed and is in the queue
+     */
+    private boolean isHandshakeDone(TTPConnection conn) {
+        return conn.isReceivedSYNACK() && conn.lastAcked() >= TTPConnection.ISN
+                && conn.hasControl(TTPSegment.Type.SYN_ACK);
+    }
 
+    /**
+     * Take the SYN_ACK, remember the new token and find out if the server took the data of the SYN
+     *
+     * @param conn connection whose SYN_ACK arrived
+     * @return whether the data of the SYN was accepted
+     * @throws InterruptedIOException
+     */
+    private boolean readSynAck(TTPConnection conn) throws InterruptedIOException {
         Datagram datagram = conn.retrieve(TTPSegment.Type.SYN_ACK);
-//        TTPSegment synack = (TTPSegment) datagram.getData();
+        TTPSegment synack = (TTPSegment) datagram.getData();
 
-        while (conn.lastAcked() < TTPConnection.ISN);
+        boolean isAccepted = false;
+        if (synack.getData() != null && synack.getData().length == 5) {
+            ByteBuffer reply = ByteBuffer.wrap(synack.getData());
+            setFastOpenToken(conn.getDstAddr(), conn.getDstPort(), reply.getInt());
+            isAccepted = reply.get() == 1;
+        }
+        return isAccepted;
+    }
 
-        System.out.println("== Connection established ==");
-        return conn;
+    /**
+     * Fast open token given by a server, applications may persist it between runs
+     *
+     * @param dstAddr server address
+     * @param dstPort server port
+     * @return token, null if the server never gave one
+     */
+    public Integer getFastOpenToken(String dstAddr, short dstPort) {
+        return fastOpenTokens.get(dstAddr + ":" + dstPort);
+    }
+
+    /**
+     * Remember the fast open token of a server
+     *
+     * @param dstAddr server address
+     * @param dstPort server port
+     * @param token token
+     */
+    public void setFastOpenToken(String dstAddr, short dstPort, int token) {
+        fastOpenTokens.put(dstAddr + ":" + dstPort, token);
     }
 
     /**
@@ -153,54 +588,344 @@ public class TTPService {
      */
     public void close(TTPConnection conn) throws IOException, ClassNotFoundException{
         // send FIN
-        TTPSegment fin = packSegment(conn, TTPSegment.Type.FIN, 0, null);
-
-        boolean isSent = false;
-        while (!isSent) {
-           isSent = sendSegment(conn, fin);
+        conn.sendLock().lock();
+        try {
+            // held back messages go before the FIN
+            while (!flushBatch(conn)) {
+                awaitWindow(conn);
+            }
+            TTPSegment fin = packSegment(conn, TTPSegment.Type.FIN, 0, null);
+            conn.setState(TTPConnection.State.FIN_WAIT);
+            while (!sendSegment(conn, fin)) {
+                awaitWindow(conn);
+            }
+        } finally {
+            conn.sendLock().unlock();
         }
 
-        while (!conn.isReceivedFINACK());
-        conn.setReceivedFINACK(false);
+        // the ReceiverThread moves it on when the FIN_ACK arrives, and the timer takes it out of the table
+        conn.await(() -> isCloseDone(conn));
+    }
 
-        conn.close();
-        connections.remove(conn.getTag());
-        // stop receiver thread
-        this.receiver.interrupt();
+    /**
+     * Non-blocking close, the FIN goes out as soon as the window has room
+     * and the future completes on the ReceiverThread when the FIN_ACK arrives
+     *
+     * @param conn connection
+     * @return completes when the connection is closed
+     */
+    public CompletableFuture<Void> closeAsync(final TTPConnection conn) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        conn.whenStateChanges(new BooleanSupplier() {
+            boolean isFinSent;
+
+            @Override
+            public boolean getAsBoolean() {
+                if (!isFinSent && conn.getState() != TTPConnection.State.CLOSED) {
+                    if (!trySendLock(conn)) return false;
+                    try {
+                        if (!flushBatch(conn) || conn.isWindowFull()) return false;
+                        TTPSegment fin = packSegment(conn, TTPSegment.Type.FIN, 0, null);
+                        conn.setState(TTPConnection.State.FIN_WAIT);
+                        sendSegment(conn, fin);
+                        isFinSent = true;
+                    } catch (IOException e) {
+                        // it's in the window, the timer retransmits it
+                        e.printStackTrace();
+                        isFinSent = true;
+                    } finally {
+                        conn.sendLock().unlock();
+                    }
+                }
+                if (!isCloseDone(conn)) return false;
+                future.complete(null);
+                return true;
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @param conn connection closed by this end
+     * @return whether the FIN_ACK arrived, or the connection was dropped
+     */
+    private boolean isCloseDone(TTPConnection conn) {
+        return conn.getState() == TTPConnection.State.TIME_WAIT || conn.getState() == TTPConnection.State.CLOSED;
     }
 
     /**
-     *  Accept a close connection request
-     *  TODO: this is ugly
+     * Probe an idle connection, like a TCP keep-alive
+     * The probe repeats the last DATA sequence number the peer already has, it isn't put in the window
+     * and consumes no sequence number, the peer takes it as a duplicate and answers with its cumulative ACK,
+     * which refreshes the connection's last received time. Only sent when nothing is unacked,
+     * otherwise the retransmissions already probe the peer, and skipped while another thread is sending,
+     * so it never blocks the timer
      *
-     * @param tag connection key
+     * @param conn connection
+     * @return whether a probe was sent
      * @throws IOException
      */
-    private void acceptClose(final String tag, final int finSeq) throws IOException {
+    public boolean sendKeepAlive(TTPConnection conn) throws IOException {
+        if (!conn.sendLock().tryLock()) return false;
+        try {
+            if (!conn.isActive || conn.hasUnacked()) return false;
+
+            TTPSegment probe = pool.segment();
+            probe.setType(TTPSegment.Type.DATA);
+            probe.setSeqNum(conn.peekNextSeq() - 1);
+            probe.setAckNum(conn.lastAcked());
+            probe.setData(new byte[0]);
+            probe.setSize(0);
+            System.out.println("Send keep-alive: " + probe.getSeqNum());
+            sender.sendControl(toDatagram(conn, probe));
+            return true;
+        } finally {
+            conn.sendLock().unlock();
+        }
+    }
 
-        Thread thread = new Thread(){
+    /**
+     * Free connections whose peer is gone, e.g. a client that crashed without a FIN or a fast open SYN
+     * that was never followed up, together with their window and queues.
+     * Half-open handshakes hold no state to begin with, SYN cookies only create a connection on the ACK
+     *
+     * Every keep-alive interval the shared timer probes connections the peer has been silent on that long,
+     * a live peer ACKs the probe. A connection silent for the idle timeout is dropped,
+     * threads blocked on it fail with "Connection closed"
+     *
+     * @param keepAliveMillis probe connections silent for this long, 0 for no probes
+     * @param idleTimeoutMillis drop connections silent for this long, 0 to disable the reaper
+     */
+    public synchronized void setIdleTimeout(long keepAliveMillis, long idleTimeoutMillis) {
+        if (reaper != null) reaper.cancel(false);
+        reaper = null;
+        if (idleTimeoutMillis <= 0) return;
+
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        // probes go out on time, and a dead connection outlives its timeout by a fraction of it at most
+        long period = keepAliveMillis > 0 ? Math.min(keepAliveMillis, idleTimeoutMillis / 4) : idleTimeoutMillis / 4;
+        period = Math.max(period, 1);
+        reaper = timer.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
+                reap();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
 
-                TTPConnection conn = connections.get(tag);
-
-                TTPSegment finack = packSegment(conn, TTPSegment.Type.FIN_ACK, finSeq, null);
+    /**
+     * Reaper pass over all the connections, runs on the timer
+     */
+    private void reap() {
+        long now = System.nanoTime();
+        for (TTPConnection conn : connections.values()) {
+            // leaves on its own timer
+            if (conn.getState() == TTPConnection.State.TIME_WAIT) continue;
+
+            long silence = now - conn.getLastReceived();
+            if (silence >= idleTimeoutNanos) {
+                System.out.println("Reaper: " + conn.getTag() + " silent for "
+                        + TimeUnit.NANOSECONDS.toMillis(silence) + " ms, dropped");
+                abort(conn);
+                // never accepted, don't hand it out
+                BlockingQueue<TTPConnection> queue = acceptQueue;
+                if (queue != null) queue.remove(conn);
+                reaped.incrementAndGet();
+            } else if (keepAliveNanos > 0 && silence >= keepAliveNanos) {
                 try {
+                    if (sendKeepAlive(conn)) keepAlives.incrementAndGet();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Nagle style batching of small messages on connections opened or accepted from now on:
+     * a message that fits in a segment goes out at once if the connection has nothing in flight,
+     * otherwise it's held back with the following ones until everything in flight is ACKed or
+     * the segment is full, and they go out together as one BATCH segment. Fewer segments and ACKs
+     * for chatty applications, at the cost of up to a round trip of delay.
+     * TTPConnection.setNoDelay turns it off for a single connection
+     *
+     * @param isCoalescing batch small messages, off by default
+     */
+    public void setCoalescing(boolean isCoalescing) {
+        this.isCoalescing = isCoalescing;
+    }
+
+    /**
+     * @return small messages batched and BATCH segments sent
+     */
+    public String coalescingReport() {
+        return String.format("%d messages batched into %d segments", batchedMessages.get(), batches.get());
+    }
+
+    /**
+     * Forward error correction on connections opened or accepted from now on: every group of groupSize
+     * data segments is followed by a FEC segment, the XOR parity of the group, see FecEncoder.
+     * The peer rebuilds a single segment of a group it didn't get out of the others and the parity,
+     * instead of waiting for the timeout and the retransmission of the whole window.
+     * It costs a segment per group. The peer decodes once it gets a parity, nothing to set on its side
+     *
+     * @param groupSize data segments per parity segment, 2 to FecEncoder.MAX_GROUP_SIZE, 0 turns it off
+     */
+    public void setFec(int groupSize) {
+        if (groupSize != 0 && (groupSize < 2 || groupSize > FecEncoder.MAX_GROUP_SIZE)) {
+            throw new IllegalArgumentException("FEC group size must be 0 or 2 to "
+                    + FecEncoder.MAX_GROUP_SIZE + ": " + groupSize);
+        }
+        this.fecGroupSize = groupSize;
+    }
+
+    /**
+     * @return parity segments sent, segments rebuilt from the peer's parity, and retransmissions,
+     * i.e. windows resent and the segments in them
+     */
+    public String fecReport() {
+        return String.format("%d parity segments sent, %d segments rebuilt, %d windows resent, %d segments",
+                paritySent.get(), rebuilt.get(), resends.get(), resentSegments.get());
+    }
+
+    /**
+     * @return number of connections dropped by the reaper
+     */
+    public long getReaped() {
+        return reaped.get();
+    }
+
+    /**
+     * @return open connections, keep-alive probes sent and connections reaped
+     */
+    public String reaperReport() {
+        return String.format("%d connections, %d keep-alive probes, %d reaped",
+                connections.size(), keepAlives.get(), reaped.get());
+    }
+
+    /**
+     * Drop a connection whose peer stopped answering, without the FIN exchange it can't complete
+     * Threads blocked in receive on it fail with "Connection closed"
+     *
+     * @param conn connection
+     */
+    public void abort(TTPConnection conn) {
+        // before the close is signalled, so publishers report an error rather than the end of the stream
+        conn.abortData();
+        finishClose(conn);
+    }
+
+    /**
+     * Stop the receiver thread, connections still open are left as they are
+     * DatagramService can't be closed, so the receiver stops after the next packet it gets,
+     * whatever it schedules on the timer meanwhile is dropped
+     */
+    public void shutdown() {
+        receiver.stop = true;
+        receiver.interrupt();
+        sender.stop = true;
+        sender.interrupt();
+        // last, the threads above may still schedule
+        timer.shutdownNow();
+    }
+
+    /**
+     * CLOSE_WAIT: answer the peer's FIN with a FIN_ACK, then wait in LAST_ACK for its ACK
+     * Runs on the ReceiverThread or the timer, so it never blocks: an application thread may hold
+     * the send lock while it waits for the window, which only the ReceiverThread and the timer can open.
+     * If the lock is taken or the window is full, it's tried again a retransmission interval later
+     *
+     * @param conn connection
+     */
+    private void sendFinAck(final TTPConnection conn) {
+        if (conn.getState() != TTPConnection.State.CLOSE_WAIT) return;
+
+        boolean isSent = false;
+        if (conn.sendLock().tryLock()) {
+            try {
+                if (!conn.isWindowFull()) {
+                    TTPSegment finack = packSegment(conn, TTPSegment.Type.FIN_ACK, conn.lastAcked(), null);
+                    // state first, the ACK may come back before sendSegment returns
+                    conn.setFinAckSeq(finack.getSeqNum());
+                    conn.setState(TTPConnection.State.LAST_ACK);
                     sendSegment(conn, finack);
-                } catch (IOException e){}
+                    isSent = true;
+                }
+            } catch (IOException e) {
+                // it's in the window, the timer retransmits it
+                e.printStackTrace();
+            } finally {
+                conn.sendLock().unlock();
+            }
+        }
 
-                conn.setLastAcked(finSeq);
+        if (isSent) {
+            // the peer's TIME_WAIT may end before its ACK gets through, don't retransmit forever
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (conn.getState() == TTPConnection.State.LAST_ACK) finishClose(conn);
+                }
+            }, (long) LAST_ACK_TIMEOUTS * timeout);
+        } else {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendFinAck(conn);
+                }
+            }, timeout);
+        }
+    }
 
-                // wait to receive ACK of FIN_ACK
-                try {
-                    while (conn.hasUnacked() && conn.firstUnacked() <= finack.getSeqNum());
-                } catch (NoSuchElementException e) {}
+    /**
+     * LAST_ACK: the ACK of our FIN_ACK arrived, the connection is closed
+     *
+     * @param conn connection
+     */
+    private void checkLastAck(TTPConnection conn) {
+        if (conn.getState() != TTPConnection.State.LAST_ACK) return;
+        try {
+            if (conn.hasUnacked() && conn.firstUnacked() <= conn.getFinAckSeq()) return;
+        } catch (NoSuchElementException e) {
+            // window emptied meanwhile
+        }
+        finishClose(conn);
+    }
 
-                connections.remove(conn.getTag());
-                conn.close();
+    /**
+     * FIN_ACK received in FIN_WAIT: ACK it and linger in TIME_WAIT, the peer retransmits the FIN_ACK
+     * if the ACK is lost and it's ACKed again, instead of blasting several ACKs and hoping one arrives.
+     * The application sees the connection closed right away
+     *
+     * @param conn connection
+     * @param finAckSeq sequence number of the peer's FIN_ACK
+     * @throws IOException
+     */
+    private void enterTimeWait(final TTPConnection conn, int finAckSeq) throws IOException {
+        sendAck(conn, finAckSeq);
+        conn.close();
+        conn.setState(TTPConnection.State.TIME_WAIT);
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                finishClose(conn);
             }
-        };
-        thread.start();
+        }, (long) TIME_WAIT_TIMEOUTS * timeout);
+    }
+
+    /**
+     * Take a connection out of the service, it stops retransmitting
+     *
+     * @param conn connection
+     */
+    private void finishClose(TTPConnection conn) {
+        conn.close();
+        conn.endTimer();
+        conn.setState(TTPConnection.State.CLOSED);
+        connections.remove(conn.getKey(), conn);
+        conn.clearBuffers();
     }
 
     /**
@@ -212,35 +937,289 @@ public class TTPService {
      * @throws IOException
      */
     public void send(TTPConnection conn, byte[] data) throws IOException{
-        int length = data.length;
-        int remain = length;
+        send(conn, TTPConnection.DEFAULT_STREAM, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Send data as one message on a stream of the connection
+     *
+     * @param conn connection
+     * @param streamId stream
+     * @param data data
+     * @throws IOException
+     */
+    public void send(TTPConnection conn, int streamId, byte[] data) throws IOException{
+        send(conn, streamId, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Send the remaining bytes of the buffers as one message on the default stream
+     *
+     * @param conn connection
+     * @param buffers message content
+     * @throws IOException
+     */
+    public void send(TTPConnection conn, ByteBuffer... buffers) throws IOException{
+        send(conn, TTPConnection.DEFAULT_STREAM, buffers);
+    }
+
+    /**
+     * Send the remaining bytes of the buffers as one message, gathered in order
+     * Fragments are copied straight from the buffers, so a header and a mapped file region
+     * can be sent without first being copied into one array
+     *
+     * Messages of different streams may be sent concurrently, their segments interleave on the connection
+     * and each stream is reassembled on its own by receive, so a small message doesn't wait for a large one
+     * on another stream to be sent whole. Messages of one stream must be sent by one thread at a time
+     *
+     * @param conn connection
+     * @param streamId stream
+     * @param buffers message content
+     * @throws IOException
+     */
+    public void send(TTPConnection conn, int streamId, ByteBuffer... buffers) throws IOException{
+        int remain = 0;
+        for (ByteBuffer buffer : buffers) {
+            remain += buffer.remaining();
+        }
+
+        if (!conn.isNoDelay() && MessageBatch.isSmall(remain) && coalesce(conn, streamId, buffers, remain)) return;
 
         // break data into fragments
         while (remain > 0) {
-            int len;
-            TTPSegment.Type type;
-            if (remain > TTPSegment.MAX_DATA_SIZE) {
-                len = TTPSegment.MAX_DATA_SIZE;
-                type = TTPSegment.Type.DATA;
-            } else {
-                len = remain;
-                type = TTPSegment.Type.EOF;
+            int len = Math.min(remain, TTPSegment.MAX_DATA_SIZE);
+            byte[] fragment = nextFragment(buffers, len);
+
+            // number the segment and put it in the window in one go
+            conn.sendLock().lock();
+            try {
+                // held back messages go first, those of this stream must stay in order
+                while (!flushBatch(conn)) {
+                    awaitWindow(conn);
+                }
+                TTPSegment segment = packFragment(conn, streamId, fragment, remain == len);
+
+                // wait until there's space available in send window
+                while (!sendSegment(conn, segment)) {
+                    awaitWindow(conn);
+                }
+            } finally {
+                conn.sendLock().unlock();
             }
+            remain -= len;
+        }
+    }
 
-            byte[] fragment = new byte[len];
-            System.arraycopy(data, length - remain, fragment, 0, len);
+    /**
+     * Hold a small message back in the batch of the connection if it has data in flight
+     *
+     * @param conn connection
+     * @param streamId stream
+     * @param buffers message content
+     * @param length message length, small enough for a batch
+     * @return whether the message was batched, otherwise nothing is in flight and it should be sent as usual
+     * @throws IOException
+     */
+    private boolean coalesce(final TTPConnection conn, int streamId, ByteBuffer[] buffers, int length)
+            throws IOException {
+        MessageBatch created = null;
+        conn.sendLock().lock();
+        try {
+            MessageBatch batch = conn.getBatch();
+            // another stream's, or full, it can't wait for this one
+            if (batch != null && !batch.fits(streamId, length)) {
+                while (!flushBatch(conn)) {
+                    awaitWindow(conn);
+                }
+                batch = null;
+            }
+            if (batch == null) {
+                if (!conn.hasUnacked()) return false;
+                batch = created = new MessageBatch(streamId);
+                conn.setBatch(batch);
+            }
+            batch.add(buffers, length);
+            batchedMessages.incrementAndGet();
+        } finally {
+            conn.sendLock().unlock();
+        }
 
-            TTPSegment segment = packSegment(conn, type, 0, fragment);
+        if (created == null) {
+            // an ACK handled while the lock was held may have found the batch locked, go over the steps again
+            conn.signalStateChange();
+            return true;
+        }
 
-            // loop until there's space available in send window
-            boolean isSent = false;
-            while (!isSent) {
-                isSent = sendSegment(conn, segment);
+        // flushed by the ReceiverThread once the last segment in flight is ACKed,
+        // unless a sender flushes it first
+        final MessageBatch batch = created;
+        conn.whenStateChanges(() -> {
+            if (conn.getBatch() != batch || !conn.isActive) return true;
+            if (conn.hasUnacked() || !trySendLock(conn)) return false;
+            try {
+                flushBatch(conn);
+            } catch (IOException e) {
+                // it's in the window, the timer retransmits it
+                e.printStackTrace();
+            } finally {
+                conn.sendLock().unlock();
             }
-            remain -= len;
+            return conn.getBatch() != batch;
+        });
+        return true;
+    }
+
+    /**
+     * Send the held back small messages of the connection, the send lock must be held
+     * A single message goes as a plain EOF
+     *
+     * @param conn connection
+     * @return whether no batch is left, false if the window is full
+     * @throws IOException
+     */
+    private boolean flushBatch(TTPConnection conn) throws IOException {
+        MessageBatch batch = conn.getBatch();
+        if (batch == null) return true;
+        if (conn.isWindowFull()) return false;
+
+        TTPSegment segment;
+        if (batch.getCount() == 1) {
+            segment = packFragment(conn, batch.getStreamId(), batch.first(), true);
+        } else {
+            segment = packSegment(conn, TTPSegment.Type.BATCH, conn.lastAcked(), batch.toData());
+            segment.setStreamId(batch.getStreamId());
+            batches.incrementAndGet();
+        }
+        conn.setBatch(null);
+        sendSegment(conn, segment);
+        return true;
+    }
+
+    /**
+     * Non-blocking send of the remaining bytes of the buffers as one message
+     * Fragments are put in the window as it opens, by the ReceiverThread when ACKs arrive,
+     * the future completes once the last one is in the window. As with send, messages of one stream
+     * must not overlap, start the next one when the future of the previous one completes
+     *
+     * @param conn connection
+     * @param streamId stream
+     * @param buffers message content, mustn't be changed before the future completes
+     * @return completes when the whole message is in the window
+     */
+    public CompletableFuture<Void> sendAsync(TTPConnection conn, int streamId, ByteBuffer... buffers) {
+        AsyncSend send = new AsyncSend(conn, streamId, buffers);
+        conn.whenStateChanges(send);
+        return send.future;
+    }
+
+    /**
+     * Copy the next fragment of a message out of its buffers, into a pooled array if it's full size
+     *
+     * @param buffers message content, the first ones may be used up already
+     * @param len fragment length
+     * @return fragment
+     */
+    private byte[] nextFragment(ByteBuffer[] buffers, int len) {
+        byte[] fragment = len == TTPSegment.MAX_DATA_SIZE ? pool.fragment() : new byte[len];
+        int filled = 0;
+        int current = 0;
+        while (filled < len) {
+            while (!buffers[current].hasRemaining()) current++;
+            int n = Math.min(len - filled, buffers[current].remaining());
+            buffers[current].get(fragment, filled, n);
+            filled += n;
+        }
+        return fragment;
+    }
+
+    /**
+     * Number a fragment of a message, the send lock must be held until it's in the window
+     *
+     * @param conn connection
+     * @param streamId stream
+     * @param fragment fragment
+     * @param isLast last fragment of the message
+     * @return DATA, or EOF for the last fragment
+     */
+    private TTPSegment packFragment(TTPConnection conn, int streamId, byte[] fragment, boolean isLast) {
+        // piggyback the cumulative ACK, the client's first segment carries the SYN cookie this way
+        TTPSegment segment = packSegment(conn, isLast ? TTPSegment.Type.EOF : TTPSegment.Type.DATA,
+                conn.lastAcked(), fragment);
+        segment.setStreamId(streamId);
+        return segment;
+    }
+
+    /**
+     * The send lock is free for a step of an asynchronous operation
+     * It may be held by a sender waiting for the window, or by this very thread, which signals state changes
+     * while it holds it, in both cases the step is retried on a later state change
+     *
+     * @param conn connection
+     * @return whether the lock was taken
+     */
+    private static boolean trySendLock(TTPConnection conn) {
+        return !conn.sendLock().isHeldByCurrentThread() && conn.sendLock().tryLock();
+    }
+
+    /**
+     * Step of sendAsync, puts as many fragments in the window as it has room for
+     */
+    private class AsyncSend implements BooleanSupplier {
+        final TTPConnection conn;
+        final int streamId;
+        final ByteBuffer[] buffers;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        int remain;
+
+        AsyncSend(TTPConnection conn, int streamId, ByteBuffer[] buffers) {
+            this.conn = conn;
+            this.streamId = streamId;
+            this.buffers = buffers;
+            for (ByteBuffer buffer : buffers) {
+                remain += buffer.remaining();
+            }
+        }
+
+        @Override
+        public boolean getAsBoolean() {
+            if (!conn.isActive) {
+                future.completeExceptionally(new SocketException("Connection closed"));
+                return true;
+            }
+            if (remain > 0) {
+                if (!trySendLock(conn)) return false;
+                try {
+                    if (!flushBatch(conn)) return false;
+                    while (remain > 0 && !conn.isWindowFull()) {
+                        int len = Math.min(remain, TTPSegment.MAX_DATA_SIZE);
+                        sendSegment(conn, packFragment(conn, streamId, nextFragment(buffers, len), remain == len));
+                        remain -= len;
+                    }
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                    return true;
+                } finally {
+                    conn.sendLock().unlock();
+                }
+            }
+            if (remain > 0) return false;
+            future.complete(null);
+            return true;
         }
     }
 
+    /**
+     * Block until the send window of the connection has space
+     *
+     * @param conn connection
+     * @throws InterruptedIOException
+     * @throws SocketException connection closed meanwhile, e.g. dropped by the reaper
+     */
+    private void awaitWindow(TTPConnection conn) throws IOException {
+        conn.await(() -> !conn.isActive || !conn.isWindowFull());
+        if (!conn.isActive) throw new SocketException("Connection closed");
+    }
+
     /**
      * Helper method, construct Datagram and feed it to another helper method to send
      *
@@ -251,25 +1230,70 @@ public class TTPService {
      */
     private boolean sendSegment(TTPConnection conn, TTPSegment segment) throws IOException {
 
-        if (conn.isWindowFull()) return false;
+        // ACKs don't go in the window, they must get out even when it's full
+        if (segment.getType() != TTPSegment.Type.ACK && conn.isWindowFull()) return false;
 
-        Datagram datagram = new Datagram();
+        sentDatagram(conn, toDatagram(conn, segment));
+
+        return true;
+    }
+
+    /**
+     * Wrap a segment in a checksummed Datagram addressed to the peer of the connection
+     *
+     * @param conn connection
+     * @param segment segment
+     * @return datagram
+     */
+    private Datagram toDatagram(TTPConnection conn, TTPSegment segment) {
+        Datagram datagram = pool.datagram();
         datagram.setData(segment);
         datagram.setSrcaddr(conn.getSrcAddr());
         datagram.setDstaddr(conn.getDstAddr());
         datagram.setDstport(conn.getDstPort());
         datagram.setSrcport(conn.getSrcPort());
-        datagram.setSize((short) DataUtil.objectToByte(segment).length);
+        datagram.setSize((short) DataUtil.serializedSize(segment));
         datagram.setChecksum((short) 0);
-        datagram.setChecksum(DataUtil.getUDPCheckSum(DataUtil.objectToByte(datagram)));
+        datagram.setChecksum(DataUtil.getSerializedCheckSum(datagram));
+        return datagram;
+    }
+
+    /**
+     * Give a datagram whose segment is done with back to the pool, see SegmentPool
+     * @param datagram datagram
+     */
+    void release(Datagram datagram) {
+        pool.release(datagram);
+    }
 
-        sentDatagram(conn, datagram);
+    /**
+     * @return objects the segment pool allocated and reused
+     */
+    public String segmentPoolReport() {
+        return pool.report();
+    }
 
-        return true;
+    /**
+     * Put the window of a connection on the wire again, after a timeout
+     *
+     * @param conn connection
+     * @param window datagrams of the window, in sequence order
+     */
+    void resendWindow(TTPConnection conn, Collection<Datagram> window) {
+        resends.incrementAndGet();
+        resentSegments.addAndGet(window.size());
+        sender.resend(conn, window);
+    }
+
+    /**
+     * @return datagrams the PacedSender sent and skipped, and its waits for pacing
+     */
+    public String senderReport() {
+        return sender.report();
     }
 
     /**
-     * Send a datagram through a connection
+     * Hand a datagram of a connection to the PacedSender, followed by the parity if it closes a FEC group
      *
      * @param conn connection
      * @param datagram datagram
@@ -277,15 +1301,34 @@ public class TTPService {
      */
     void sentDatagram(TTPConnection conn, Datagram datagram) throws IOException{
 
-        ds.sendDatagram(datagram);
-
         TTPSegment segment = (TTPSegment) datagram.getData();
-        System.out.println("Send Segment: " + segment.getSeqNum() +" " + segment.getType().toString());
-
-        if (segment.getType() != TTPSegment.Type.ACK) {
-            if (!conn.hasUnacked())
-                conn.startTimer();
-            conn.addToWindow(segment.getSeqNum(), datagram);
+        // read before it's sent, afterwards it may be ACKed and reused already
+        int seqNum = segment.getSeqNum();
+        TTPSegment.Type type = segment.getType();
+
+        // put it in the window before it's on the wire, so its ACK can never arrive first
+        FecEncoder fec = conn.getFecEncoder();
+        boolean isGroupClosed = false;
+        if (type != TTPSegment.Type.ACK) {
+            if (fec != null && FecEncoder.isProtected(type)) isGroupClosed = fec.add(segment);
+            // an ACK emptying the window meanwhile would end the timer this segment needs
+            synchronized (conn.windowLock()) {
+                if (!conn.hasUnacked())
+                    conn.startTimer();
+                conn.addToWindow(seqNum, datagram);
+            }
+            sender.sendData(conn, datagram);
+        } else {
+            sender.sendControl(datagram);
+        }
+        System.out.println("Send Segment: " + seqNum +" " + type.toString());
+
+        if (isGroupClosed) {
+            // numbered right after its group, so it goes in the window even if that's full
+            TTPSegment parity = packSegment(conn, TTPSegment.Type.FEC, 0, null);
+            fec.close(parity);
+            paritySent.incrementAndGet();
+            sentDatagram(conn, toDatagram(conn, parity));
         }
     }
 
@@ -298,50 +1341,146 @@ public class TTPService {
      * @throws IOException
      */
     public byte[] receive(TTPConnection conn) throws ClassNotFoundException, IOException{
-        List<byte[]> fragments = new ArrayList<>();
-        int length = 0;
+        return receive(conn, TTPConnection.DEFAULT_STREAM, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Receive a message of the default stream no longer than maxLength
+     *
+     * @param conn connection
+     * @param maxLength max message length
+     * @return application data
+     * @throws ClassNotFoundException
+     * @throws IOException message longer than maxLength
+     */
+    public byte[] receive(TTPConnection conn, int maxLength) throws ClassNotFoundException, IOException{
+        return receive(conn, TTPConnection.DEFAULT_STREAM, maxLength);
+    }
+
+    /**
+     * Receive a message no longer than maxLength, so a peer can't make the application buffer
+     * an arbitrary amount of data. A longer message is still consumed to its end,
+     * the connection stays usable for the next message
+     * Only fragments of the given stream are reassembled, other streams are left to their own receivers
+     *
+     * @param conn connection
+     * @param streamId stream
+     * @param maxLength max message length
+     * @return application data
+     * @throws ClassNotFoundException
+     * @throws IOException message longer than maxLength
+     */
+    public byte[] receive(TTPConnection conn, int streamId, int maxLength) throws ClassNotFoundException, IOException{
+        Reassembly message = new Reassembly(maxLength);
 
         boolean isEnd = false;
         while (!isEnd) {
 
-            // break through the loop if connection closed
-            while (conn.isActive && !conn.hasData());
+            // wake up when data arrives or connection closed
+            conn.await(() -> !conn.isActive || conn.hasData(streamId));
             if (!conn.isActive) {
                 throw new SocketException("Connection closed");
             }
 
-            Datagram datagram = conn.retrieveData();
+            Datagram datagram = conn.retrieveData(streamId);
             TTPSegment segment = (TTPSegment) datagram.getData();
 
             // receive corrupted or out of order segment
             if (segment == null) continue;
 
-            if (segment.getType() == TTPSegment.Type.EOF) {
-                isEnd = true;
-            }
-
-            length += segment.getData().length;
-            fragments.add(segment.getData());
+            isEnd = message.add(datagram);
         }
-
-        return reassemble(length, fragments);
+        return message.reassemble();
     }
 
     /**
-     * Reassmeble fragments
+     * Non-blocking receive of a message no longer than maxLength, see receive
+     * Fragments are collected by the ReceiverThread as they arrive, the future completes on it
+     * with the whole message. Only one receive of a stream may be pending at a time
      *
-     * @param length totalLength
-     * @param fragments fragment list
-     * @return data byte array
+     * @param conn connection
+     * @param streamId stream
+     * @param maxLength max message length
+     * @return application data, or fails with an IOException if the message is too long or the connection closed
+     */
+    public CompletableFuture<byte[]> receiveAsync(final TTPConnection conn, final int streamId, int maxLength) {
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        final Reassembly message = new Reassembly(maxLength);
+
+        conn.whenStateChanges(() -> {
+            if (!conn.isActive) {
+                future.completeExceptionally(new SocketException("Connection closed"));
+                return true;
+            }
+            while (conn.hasData(streamId)) {
+                Datagram datagram = conn.retrieveData(streamId);
+                if (datagram.getData() == null || !message.add(datagram)) continue;
+
+                try {
+                    future.complete(message.reassemble());
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+                return true;
+            }
+            return false;
+        });
+        return future;
+    }
+
+    /**
+     * Fragments of one message being received
      */
-    private byte[] reassemble(int length, List<byte[]> fragments) {
-        byte[] data = new byte[length];
-        int pos = 0;
-        for (byte[] frag: fragments){
-            System.arraycopy(frag, 0, data, pos, frag.length);
-            pos += frag.length;
+    private final class Reassembly {
+        final int maxLength;
+        final List<Datagram> fragments = new ArrayList<>();
+        long length;
+
+        Reassembly(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * @param datagram datagram of a DATA or EOF segment, given to the pool once reassembled
+         * @return whether it's the last fragment
+         */
+        boolean add(Datagram datagram) {
+            TTPSegment segment = (TTPSegment) datagram.getData();
+            boolean isEnd = segment.getType() == TTPSegment.Type.EOF;
+            length += segment.getData().length;
+            fragments.add(datagram);
+            // too long, drop fragments but keep reading to the end of the message
+            if (length > maxLength) release();
+            return isEnd;
+        }
+
+        /**
+         * Reassmeble fragments
+         *
+         * @return data byte array
+         * @throws IOException message longer than maxLength
+         */
+        byte[] reassemble() throws IOException {
+            if (length > maxLength) {
+                throw new IOException("Message of " + length + " bytes exceeds " + maxLength);
+            }
+            byte[] data = new byte[(int) length];
+            int pos = 0;
+            for (Datagram datagram : fragments){
+                byte[] frag = ((TTPSegment) datagram.getData()).getData();
+                System.arraycopy(frag, 0, data, pos, frag.length);
+                pos += frag.length;
+            }
+            release();
+            return data;
+        }
+
+        private void release() {
+            for (Datagram datagram : fragments) {
+                pool.release(datagram);
+            }
+            fragments.clear();
         }
-        return data;
     }
 
 
@@ -350,21 +1489,27 @@ public class TTPService {
      *
      * @param conn connection
      * @param type segment type
-     * @param ackNum which segment is this one acknowledge for, valid for ACK/SYN_ACK/FIN_ACK
+     * @param ackNum which segment is this one acknowledge for, valid for ACK/SYN_ACK/FIN_ACK,
+     *               piggybacked cumulative ACK for DATA/EOF
      * @param data application data, valid for DATA/EOF
      * @return TTPSegment
      */
     private TTPSegment packSegment(TTPConnection conn, TTPSegment.Type type, int ackNum, byte[] data) {
-        TTPSegment segment = new TTPSegment();
+        TTPSegment segment = pool.segment();
 
         segment.setType(type);
-        segment.setSeqNum(conn.getNextSeq());
+        // ACK isn't acked or retransmitted itself, so it doesn't consume a sequence number,
+        // a lost ACK can't leave a hole in the peer's expected sequence
+        segment.setSeqNum(type == TTPSegment.Type.ACK ? conn.peekNextSeq() : conn.getNextSeq());
         segment.setData(data);
         if(data != null)segment.setSize(data.length);
-        if (type == TTPSegment.Type.ACK
-                || type == TTPSegment.Type.SYN_ACK
-                || type == TTPSegment.Type.FIN_ACK)
+        if (type != TTPSegment.Type.SYN && type != TTPSegment.Type.FIN)
             segment.setAckNum(ackNum);
+        if (type == TTPSegment.Type.ACK) {
+            int window = conn.receiveWindow();
+            segment.setWindow(window);
+            conn.setAdvertisedWindow(window);
+        }
 
         return segment;
     }
@@ -377,99 +1522,194 @@ public class TTPService {
      * @throws ClassNotFoundException
      * @throws IOException
      */
-    private boolean receiveSegment() throws ClassNotFoundException, IOException{
-
-        boolean stoping = false;
+    private void receiveSegment() throws ClassNotFoundException, IOException{
 
         Datagram datagram = ds.receiveDatagram();
         TTPSegment segment = (TTPSegment) datagram.getData();
 
-        String connKey = datagram.getSrcaddr() + ":" + datagram.getSrcport();
-        TTPConnection conn = connections.get(connKey);
-
-        // if no matching connection in the connection table, and this segment is a SYN
-        // create a new connection and put it in the pending table
-        if (conn == null && segment.getType() == TTPSegment.Type.SYN) {
-            conn = addPendingConnection(datagram.getDstaddr(),
-                    datagram.getDstport(),
-                    datagram.getSrcaddr(),
-                    datagram.getSrcport());
+        // checksum error, discard. Checked once here, validateChecksum leaves the checksum zeroed
+        if (!validateChecksum(datagram)) {
+            System.err.println("===> Checksum error");
+            pool.release(datagram);
+            return;
         }
 
-        // no available connections yet, return
+        // reuse the receiver's key, no allocation on lookup
+        AddressKey connKey = receiver.key.set(datagram.getSrcaddr(), datagram.getSrcport());
+        TTPConnection conn = connections.get(connKey);
+
+        // no matching connection in the connection table, it can only be a handshake
         if (conn == null) {
-            System.out.println("Connection not found or stopped");
-            return false;
+            conn = handleHandshake(datagram, segment, connKey);
+            // handshake completed by the first data segment, deliver it as usual
+            if (conn == null) return;
         }
 
         System.out.println("Receive Segment: " + segment.getSeqNum()
                 +" " + segment.getType().toString()
                 + ", last acked " + conn.lastAcked());
 
-        // checksum error, discard
-        if (!validateChecksum(datagram)) {
-            System.err.println("===> Checksum error");
-            return false;
+        // anything intact from the peer, duplicates and keep-alive answers included, shows it's alive
+        conn.markReceived();
+
+        // the connection is already established, only a fast open connection exists before the client
+        // has the SYN_ACK, so a retransmitted SYN means the SYN_ACK was lost, answer it again
+        if (segment.getType() == TTPSegment.Type.SYN) {
+            if (segment.getSeqNum() == conn.getPeerIsn()) {
+                sendSynAck(datagram, segment.getSeqNum(), conn.getIsn(), fastOpenReply(connKey, true));
+            }
+            return;
+        }
+
+        // the peer sends parity, keep what it may need from now on
+        if (segment.getType() == TTPSegment.Type.FEC && conn.getFecDecoder() == null) {
+            conn.setFecDecoder(new FecDecoder(pool));
         }
 
-        // out of order, ack is an exception because we allow cumulative ACK
+        // out of order, ack is an exception because we allow cumulative ACK,
+        // SYN_ACK carries the server's cookie ISN, which can't be expected in advance
         // Don't reply anything, just let it timeout, i.e. no fast retransmission
+        // Data we already have means our ACK got lost, ACK it again or the sender retransmits forever,
+        // the same for a FIN_ACK retransmitted to us in TIME_WAIT
         if (!(segment.getType() == TTPSegment.Type.ACK
+                || segment.getType() == TTPSegment.Type.SYN_ACK
                 || segment.getSeqNum() == conn.lastAcked() + 1)) {
             System.out.println("===> Out of order: expected - "+(conn.lastAcked()+1)+", got - " + segment.getSeqNum());
-            return false;
+            // past a hole the parity of its group may fill
+            if (conn.getFecDecoder() != null && conn.getFecDecoder().hold(datagram, conn.lastAcked() + 1)) {
+                deliverHeld(conn);
+                return;
+            }
+            if (segment.getSeqNum() <= conn.lastAcked()
+                    && (segment.getType() == TTPSegment.Type.DATA || segment.getType() == TTPSegment.Type.EOF
+                        || segment.getType() == TTPSegment.Type.BATCH || segment.getType() == TTPSegment.Type.FEC
+                        || segment.getType() == TTPSegment.Type.FIN_ACK)) {
+                sendAck(conn, conn.lastAcked());
+            }
+            pool.release(datagram);
+            return;
+        }
+
+        deliver(conn, datagram, segment);
+        if (conn.getFecDecoder() != null) deliverHeld(conn);
+    }
+
+    /**
+     * Deliver the segments held past a hole once it's filled, received or rebuilt from a parity
+     *
+     * @param conn connection that gets parity from its peer
+     * @throws IOException
+     */
+    private void deliverHeld(TTPConnection conn) throws IOException {
+        FecDecoder fec = conn.getFecDecoder();
+        while (true) {
+            int expected = conn.lastAcked() + 1;
+            Datagram next = fec.poll(expected);
+            if (next == null) {
+                next = fec.rebuild(expected);
+                if (next == null) return;
+                rebuilt.incrementAndGet();
+                System.out.println("===> Rebuilt " + expected + " from parity");
+            }
+            deliver(conn, next, (TTPSegment) next.getData());
+            // the receive window is closed, it's dropped
+            if (conn.lastAcked() < expected) return;
         }
+    }
 
+    /**
+     * Handle a segment that's next in order on the connection, or an ACK/SYN_ACK
+     *
+     * @param conn connection
+     * @param datagram datagram
+     * @param segment segment of the datagram
+     * @throws IOException
+     */
+    private void deliver(TTPConnection conn, Datagram datagram, TTPSegment segment) throws IOException {
+
+        // the stream has no credit left, drop it unacked and tell the sender the window is closed
+        if ((segment.getType() == TTPSegment.Type.DATA || segment.getType() == TTPSegment.Type.EOF
+                || segment.getType() == TTPSegment.Type.BATCH) && !conn.canAccept(segment.getStreamId())) {
+            System.out.println("===> Receive window closed, drop " + segment.getSeqNum());
+            sendAck(conn, conn.lastAcked());
+            pool.release(datagram);
+            return;
+        }
 
         switch (segment.getType()) {
             case ACK:
-                while (!conn.hasUnacked());
                 // cumulative ack, so the ack num may be larger than first unacked
-                System.out.println("  ACK ackNum: "+segment.getAckNum()+", firstUnacked:"+conn.firstUnacked());
-                conn.setLastAcked(segment.getSeqNum());
-                if (segment.getAckNum() >= conn.firstUnacked()) {
-                    handleACK(segment, conn);
-                }
-
-                break;
-            case SYN:
-                conn.setReceivedSYN(true);
+                System.out.println("  ACK ackNum: "+segment.getAckNum());
+                boolean isReopened = conn.getPeerWindow() == 0 && segment.getWindow() > 0;
+                conn.setPeerWindow(segment.getWindow());
+                handleACK(segment, conn);
+                // the zero window probe was most likely dropped, resend it now instead of at the timeout
+                if (isReopened && conn.hasUnacked()) conn.resend();
+                checkLastAck(conn);
                 break;
             case FIN:
-                acceptClose(connKey, segment.getSeqNum());
+                conn.setLastAcked(segment.getSeqNum());
+                conn.setState(TTPConnection.State.CLOSE_WAIT);
+                sendFinAck(conn);
                 break;
             case SYN_ACK:
+                // duplicate SYN_ACK, the server didn't get our ACK, send it again
+                if (conn.isReceivedSYNACK()) {
+                    sendAck(conn, segment.getSeqNum());
+                    return;
+                }
                 conn.setReceivedSYNACK(true);
                 System.out.println("  SYN ACK ackNum:"+segment.getAckNum()+", firstUnacked:"+conn.firstUnacked());
                 handleACK(segment, conn);
                 sendAck(conn, segment.getSeqNum());
                 break;
             case FIN_ACK:
-                conn.setReceivedFINACK(true);
-                while (!conn.hasUnacked());
                 System.out.println("  FIN ACK ackNum:"+segment.getAckNum()+", firstUnacked:"+conn.firstUnacked());
                 handleACK(segment, conn);
-
-                // send multiple ACK to be safe
-                for (int i=0; i<5; i++) {
-                    sendAck(conn, segment.getSeqNum());
-                }
-
-                // prepare to close socket
-                stoping = true;
+                enterTimeWait(conn, segment.getSeqNum());
                 break;
             case DATA:
-                sendAck(conn, segment.getSeqNum());
-                break;
             case EOF:
+                // queued before it's ACKed, so the window the ACK advertises counts it,
+                // its seq num is read first, the application may reuse the segment right away
+                int seqNum = segment.getSeqNum();
+                if (conn.getFecDecoder() != null) conn.getFecDecoder().keep(segment);
+                conn.addToQueue(datagram);
+                sendAck(conn, seqNum);
+                conn.signalStateChange();
+                return;
+            case BATCH:
+                if (conn.getFecDecoder() != null) conn.getFecDecoder().keep(segment);
+                // one EOF per message, receivers can't tell it from messages sent on their own
+                for (byte[] message : MessageBatch.split(segment.getData())) {
+                    TTPSegment eof = pool.segment();
+                    eof.setType(TTPSegment.Type.EOF);
+                    eof.setSeqNum(segment.getSeqNum());
+                    eof.setStreamId(segment.getStreamId());
+                    eof.setData(message);
+                    eof.setSize(message.length);
+                    Datagram split = pool.datagram();
+                    split.setData(eof);
+                    conn.addToQueue(split);
+                }
                 sendAck(conn, segment.getSeqNum());
-                break;
+                conn.signalStateChange();
+                pool.release(datagram);
+                return;
+            case FEC:
+                // nothing of its group is missing, or it's rebuilt already
+                sendAck(conn, segment.getSeqNum());
+                pool.release(datagram);
+                return;
             default:
                 break;
         }
 
+        boolean isAck = segment.getType() == TTPSegment.Type.ACK;
         conn.addToQueue(datagram);
-        return stoping;
+        conn.signalStateChange();
+        // ACKs aren't queued, they're done with
+        if (isAck) pool.release(datagram);
     }
 
     /**
@@ -481,13 +1721,17 @@ public class TTPService {
      */
     private void handleACK(TTPSegment segment, TTPConnection conn) {
 
-        if (conn.hasUnacked() && segment.getAckNum() >= conn.firstUnacked()) {
-            conn.moveWindowTo(segment.getAckNum() + 1);
-            if (conn.hasUnacked()) {
-                conn.endTimer();
-                conn.startTimer();
-            } else {
-                conn.endTimer();
+        // the same lock as sentDatagram, which starts the timer of an empty window
+        synchronized (conn.windowLock()) {
+            if (conn.hasUnacked() && segment.getAckNum() >= conn.firstUnacked()) {
+                conn.sampleRtt(segment.getAckNum());
+                conn.moveWindowTo(segment.getAckNum() + 1);
+                if (conn.hasUnacked()) {
+                    conn.endTimer();
+                    conn.startTimer();
+                } else {
+                    conn.endTimer();
+                }
             }
         }
     }
@@ -501,9 +1745,23 @@ public class TTPService {
      */
     private void sendAck(TTPConnection conn, int seqNum) throws IOException{
         System.out.println("Sending ACK for seqNum: " + seqNum);
-        TTPSegment segment = packSegment(conn, TTPSegment.Type.ACK, seqNum, null);
-        sendSegment(conn, segment);
-        conn.setLastAcked(seqNum);
+        // ACKs never go in the window, the PacedSender gives it to the pool once it's sent
+        sentDatagram(conn, toDatagram(conn, packSegment(conn, TTPSegment.Type.ACK, seqNum, null)));
+        // a repeated ACK must not move lastAcked back
+        if (seqNum > conn.lastAcked()) conn.setLastAcked(seqNum);
+    }
+
+    /**
+     * Advertise a receive window that just opened, a repeated ACK of the last segment received
+     * @param conn connection
+     */
+    void sendWindowUpdate(TTPConnection conn) {
+        try {
+            sendAck(conn, conn.lastAcked());
+        } catch (IOException e) {
+            // the sender's zero window probe gets the update too
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -515,8 +1773,7 @@ public class TTPService {
     private boolean validateChecksum(Datagram datagram){
         short expected = datagram.getChecksum();
         datagram.setChecksum((short) 0);
-        byte[] received = DataUtil.objectToByte(datagram);
-        return expected == DataUtil.getUDPCheckSum(received);
+        return expected == DataUtil.getSerializedCheckSum(datagram);
     }
 
 
@@ -526,7 +1783,9 @@ public class TTPService {
      */
     class ReceiverThread extends Thread {
 
-        boolean stop = false;
+        volatile boolean stop = false;
+        // scratch key for demultiplexing received packets
+        final AddressKey key = new AddressKey();
 
         @Override
         public void run() {
@@ -534,12 +1793,15 @@ public class TTPService {
             while (!(currentThread().isInterrupted()|| stop)) {
                 try {
 
-                    stop = TTPService.this.receiveSegment();
+                    TTPService.this.receiveSegment();
 
                 } catch (IOException e){
                     e.printStackTrace();
                 } catch (ClassNotFoundException e){
                     e.printStackTrace();
+                } catch (RuntimeException e) {
+                    // a bad segment or a failed handler costs that segment, not the receiver
+                    e.printStackTrace();
                 }
 
             }